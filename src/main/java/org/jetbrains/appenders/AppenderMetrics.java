@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a {@link NextRollingFileAppender}.
+ * <p/>
+ * The per event counters are striped, as they are updated by every logging thread; the rollover counters
+ * are updated under the lock of the appender. The current file is read without the lock and may be stale.
+ */
+public class AppenderMetrics implements AppenderMetricsMBean {
+
+    private static final int TOP_LOGGERS = 10;
+
+    private final NextRollingFileAppender appender;
+    private final StripedCounter eventsAppended = new StripedCounter();
+    private final StripedCounter bytesWritten = new StripedCounter();
+    private final AtomicLong rollovers = new AtomicLong();
+    private final AtomicLong rolloverTotalNanos = new AtomicLong();
+    private volatile long rolloverMaxNanos;
+    private final AtomicLong filesDeleted = new AtomicLong();
+
+    AppenderMetrics(NextRollingFileAppender appender) {
+        this.appender = appender;
+    }
+
+    void eventAppended(long bytes) {
+        eventsAppended.increment();
+        bytesWritten.add(bytes);
+    }
+
+    void rolledOver(long nanos) {
+        rollovers.incrementAndGet();
+        rolloverTotalNanos.addAndGet(nanos);
+        if (nanos > rolloverMaxNanos) {
+            rolloverMaxNanos = nanos;
+        }
+    }
+
+    void fileDeleted() {
+        filesDeleted.incrementAndGet();
+    }
+
+    public long getEventsAppended() {
+        return eventsAppended.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getRollovers() {
+        return rollovers.get();
+    }
+
+    public long getRolloverTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(rolloverTotalNanos.get());
+    }
+
+    public long getRolloverMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(rolloverMaxNanos);
+    }
+
+    public long getFilesDeleted() {
+        return filesDeleted.get();
+    }
+
+    public String getCurrentFile() {
+        File file = appender.getWritingFile();
+        return file != null ? file.getPath() : null;
+    }
+
+    public int getCurrentFileId() {
+        return appender.getCurrentFileId();
+    }
+
+    public long getCurrentFileSize() {
+        return appender.getCurrentFileSize();
+    }
+
+    public String[] getTopLoggers() {
+        LoggerVolume volume = appender.getLoggerVolume();
+        if (volume == null) {
+            return new String[0];
+        }
+        List<LoggerVolume.Entry> top = volume.top(TOP_LOGGERS);
+        String[] loggers = new String[top.size()];
+        for (int i = 0; i < loggers.length; i++) {
+            loggers[i] = top.get(i).toString();
+        }
+        return loggers;
+    }
+}
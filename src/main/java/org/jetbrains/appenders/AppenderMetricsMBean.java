@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+/**
+ * Statistics of a {@link NextRollingFileAppender}.
+ */
+public interface AppenderMetricsMBean {
+
+    /**
+     * Returns the number of events written.
+     */
+    long getEventsAppended();
+
+    /**
+     * Returns the amount of data written as counted for the maximum file size:
+     * bytes for binary layouts and characters for text layouts.
+     */
+    long getBytesWritten();
+
+    /**
+     * Returns the number of times the appender moved to the next file.
+     */
+    long getRollovers();
+
+    /**
+     * Returns the total time spent moving to the next file.
+     */
+    long getRolloverTotalMillis();
+
+    /**
+     * Returns the longest time spent moving to the next file.
+     */
+    long getRolloverMaxMillis();
+
+    /**
+     * Returns the number of old files removed to keep the maximum number of backups.
+     */
+    long getFilesDeleted();
+
+    String getCurrentFile();
+
+    int getCurrentFileId();
+
+    /**
+     * Returns the size of the current file, counted as {@link #getBytesWritten()}.
+     */
+    long getCurrentFileSize();
+
+    /**
+     * Returns the loggers which wrote the most since the appender was activated, when the appender counts
+     * the {@link LoggerVolume volume per logger}, with their size in bytes or characters as the appender counts it.
+     */
+    String[] getTopLoggers();
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A layout which encodes events into bytes instead of strings. {@link NextRollingFileAppender} writes
+ * the output of such layouts directly to the underlying file stream.
+ */
+public interface BinaryLayout {
+
+    /**
+     * Encodes the event and writes it to the given stream.
+     *
+     * @return the number of bytes written
+     */
+    int format(LoggingEvent event, OutputStream out) throws IOException;
+
+    /**
+     * Encodes the header record written at the beginning of every file, if any, and writes it to the given stream.
+     *
+     * @return the number of bytes written, 0 if there is no header
+     */
+    int formatHeader(OutputStream out) throws IOException;
+}
@@ -0,0 +1,456 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts the records of its layout to a bulk indexing endpoint in the format of the bulk
+ * requests of Elasticsearch and compatible stores: an action line followed by the record.
+ *
+ * Records are rendered straight into the body of the current batch, which is handed to a
+ * sender once it holds {@link #setBatchRecords(int) batchRecords} records or
+ * {@link #setBatchSize(String) batchSize} characters, or its first record is
+ * {@link #setMaxDelay(long) maxDelay} milliseconds old. At most
+ * {@link #setMaxInFlight(int) maxInFlight} requests are sent at a time, one per sender thread.
+ * A batch failing with an I/O error, 429 or a 5xx status is sent again up to
+ * {@link #setMaxRetries(int) maxRetries} times with a doubling delay.
+ *
+ * Logging threads never wait for the endpoint: while {@link #setMaxQueuedBatches(int) maxQueuedBatches}
+ * batches wait for a sender, further batches are dropped.
+ */
+public class BulkHttpAppender extends AppenderSkeleton {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final long MIN_POLL_INTERVAL = 10;
+  private static final int RESPONSE_HEAD_SIZE = 256;
+  private static final long INTERRUPT_TIMEOUT = 100;
+
+  private String myUrl = "http://localhost:9200/_bulk";
+  private String myIndex;
+  private int myBatchRecords = 1000;
+  private long myBatchSize = 5 * 1024 * 1024;
+  private long myMaxDelay = 1000;
+  private int myMaxInFlight = 2;
+  private int myMaxQueuedBatches = 8;
+  private int myMaxRetries = 3;
+  private long myRetryDelay = 500;
+  private int myConnectTimeout = 5000;
+  private int myReadTimeout = 30000;
+  private long myCloseTimeout = TimeUnit.SECONDS.toMillis(10);
+
+  private URL myEndpoint;
+  private String myActionLine;
+  private BlockingQueue<Batch> myQueue;
+  private final Queue<Batch> myFreeBatches = new ConcurrentLinkedQueue<Batch>();
+  /**
+   * The batch records are appended to, guarded by the monitor of the appender.
+   */
+  private Batch myBatch;
+  private Thread[] mySenders;
+  private volatile boolean myStopped;
+  private volatile boolean myFailing;
+  private boolean myDropWarned;
+
+  private final AtomicLong mySentRecords = new AtomicLong();
+  private final AtomicLong mySentBatches = new AtomicLong();
+  private final AtomicLong myRetries = new AtomicLong();
+  private final AtomicLong myDroppedRecords = new AtomicLong();
+
+  public String getUrl() {
+    return myUrl;
+  }
+
+  /**
+   * Sets the URL of the bulk endpoint, <code>http://localhost:9200/_bulk</code> by default.
+   */
+  public void setUrl(final String url) {
+    myUrl = url;
+  }
+
+  public String getIndex() {
+    return myIndex;
+  }
+
+  /**
+   * Sets the index named in the action lines, none by default, which leaves it to the URL of the endpoint.
+   */
+  public void setIndex(final String index) {
+    myIndex = index;
+  }
+
+  /**
+   * Sets the number of records after which a batch is sent, 1000 by default.
+   */
+  public void setBatchRecords(final int batchRecords) {
+    myBatchRecords = batchRecords;
+  }
+
+  /**
+   * Sets the number of characters after which a batch is sent, with the suffixes "KB", "MB" or "GB", 5MB by default.
+   */
+  public void setBatchSize(final String value) {
+    myBatchSize = OptionConverter.toFileSize(value, myBatchSize);
+  }
+
+  /**
+   * Sets the time in milliseconds after which a batch is sent even if it is not full, 1000 by default.
+   */
+  public void setMaxDelay(final long maxDelay) {
+    myMaxDelay = maxDelay;
+  }
+
+  /**
+   * Sets the number of requests sent at a time, 2 by default.
+   */
+  public void setMaxInFlight(final int maxInFlight) {
+    myMaxInFlight = maxInFlight;
+  }
+
+  /**
+   * Sets the number of full batches waiting for a request, 8 by default.
+   */
+  public void setMaxQueuedBatches(final int maxQueuedBatches) {
+    myMaxQueuedBatches = maxQueuedBatches;
+  }
+
+  /**
+   * Sets the number of times a failed batch is sent again, 3 by default.
+   */
+  public void setMaxRetries(final int maxRetries) {
+    myMaxRetries = maxRetries;
+  }
+
+  /**
+   * Sets the delay in milliseconds before the first retry of a batch, doubled for every next one, 500 by default.
+   */
+  public void setRetryDelay(final long retryDelay) {
+    myRetryDelay = retryDelay;
+  }
+
+  public void setConnectTimeout(final int connectTimeout) {
+    myConnectTimeout = connectTimeout;
+  }
+
+  public void setReadTimeout(final int readTimeout) {
+    myReadTimeout = readTimeout;
+  }
+
+  /**
+   * Sets the time in milliseconds the appender sends the remaining batches when closed, 10 seconds by default.
+   */
+  public void setCloseTimeout(final long closeTimeout) {
+    myCloseTimeout = closeTimeout;
+  }
+
+  /**
+   * @return the number of records accepted by the endpoint, including the records of requests answered
+   * with <code>"errors":true</code>, of which the endpoint may have rejected some
+   */
+  public long getSentRecords() {
+    return mySentRecords.get();
+  }
+
+  /**
+   * @return the number of requests accepted by the endpoint
+   */
+  public long getSentBatches() {
+    return mySentBatches.get();
+  }
+
+  /**
+   * @return the number of requests sent again after a failure
+   */
+  public long getRetries() {
+    return myRetries.get();
+  }
+
+  /**
+   * @return the number of records dropped as the queue of batches was full or the endpoint failed
+   */
+  public long getDroppedRecords() {
+    return myDroppedRecords.get();
+  }
+
+  public boolean requiresLayout() {
+    return true;
+  }
+
+  @Override
+  public synchronized void activateOptions() {
+    try {
+      myEndpoint = new URL(myUrl);
+    } catch (MalformedURLException e) {
+      errorHandler.error("Malformed url [" + myUrl + "] of appender [" + name + "].", e, ErrorCode.GENERIC_FAILURE);
+      return;
+    }
+
+    final StringBuilder action = new StringBuilder("{\"index\":{");
+    if (myIndex != null) {
+      action.append("\"_index\":");
+      JsonLayout.appendJsonString(action, myIndex);
+    }
+    myActionLine = action.append("}}\n").toString();
+
+    myQueue = new ArrayBlockingQueue<Batch>(Math.max(1, myMaxQueuedBatches));
+    myStopped = false;
+    mySenders = new Thread[Math.max(1, myMaxInFlight)];
+    for (int i = 0; i < mySenders.length; i++) {
+      mySenders[i] = new Thread(new Sender(), "BulkHttpAppender " + (name != null ? name : myUrl) + " #" + i);
+      mySenders[i].setDaemon(true);
+      mySenders[i].start();
+    }
+  }
+
+  @Override
+  protected void append(final LoggingEvent event) {
+    if (myQueue == null) {
+      errorHandler.error("Appender [" + name + "] is not activated.");
+      return;
+    }
+    if (layout == null) {
+      errorHandler.error("No layout set for the appender named [" + name + "].", null, ErrorCode.MISSING_LAYOUT);
+      return;
+    }
+
+    if (myBatch == null) {
+      myBatch = newBatch();
+    }
+    final StringBuilder text = myBatch.myText;
+    text.append(myActionLine);
+    if (layout instanceof JsonLayout) {
+      ((JsonLayout) layout).format(event, text);
+    } else {
+      text.append(layout.format(event));
+      if (text.charAt(text.length() - 1) != '\n') {
+        text.append('\n');
+      }
+    }
+
+    if (++myBatch.myRecords >= myBatchRecords || text.length() >= myBatchSize) {
+      handOff();
+    }
+  }
+
+  public void close() {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      if (myQueue == null) return;
+      handOff();
+    }
+
+    myStopped = true;
+    final long deadline = System.currentTimeMillis() + myCloseTimeout;
+    try {
+      for (Thread sender : mySenders) {
+        sender.join(Math.max(1, deadline - System.currentTimeMillis()));
+      }
+      for (Thread sender : mySenders) {
+        sender.interrupt();
+      }
+      // senders waiting to retry count their batch as dropped when interrupted
+      for (Thread sender : mySenders) {
+        sender.join(INTERRUPT_TIMEOUT);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    int remaining = 0;
+    Batch batch;
+    while ((batch = myQueue.poll()) != null) {
+      remaining += batch.myRecords;
+    }
+    if (remaining > 0) {
+      myDroppedRecords.addAndGet(remaining);
+      LogLog.warn(remaining + " records of appender [" + name + "] were not sent before closing");
+    }
+  }
+
+  private Batch newBatch() {
+    Batch batch = myFreeBatches.poll();
+    if (batch == null) {
+      batch = new Batch();
+    }
+    batch.myCreated = System.currentTimeMillis();
+    return batch;
+  }
+
+  private void recycle(final Batch batch) {
+    // a batch grown beyond the batch size, e.g. by a huge record, is not kept at its peak capacity
+    if (batch.myText.capacity() > myBatchSize) return;
+    batch.myText.setLength(0);
+    batch.myRecords = 0;
+    myFreeBatches.add(batch);
+  }
+
+  /**
+   * Queues the current batch for the senders, called holding the monitor of the appender.
+   */
+  private void handOff() {
+    final Batch batch = myBatch;
+    if (batch == null) return;
+    myBatch = null;
+
+    if (!myQueue.offer(batch)) {
+      myDroppedRecords.addAndGet(batch.myRecords);
+      if (!myDropWarned) {
+        myDropWarned = true;
+        LogLog.warn("Batches of appender [" + name + "] are dropped until the endpoint catches up");
+      }
+      recycle(batch);
+    }
+  }
+
+  private synchronized void handOffIfDue() {
+    if (myBatch != null && System.currentTimeMillis() - myBatch.myCreated >= myMaxDelay) {
+      handOff();
+    }
+  }
+
+  private static class Batch {
+    private final StringBuilder myText = new StringBuilder();
+    private int myRecords;
+    private long myCreated;
+  }
+
+  private class Sender implements Runnable {
+    private final byte[] myResponseHead = new byte[RESPONSE_HEAD_SIZE];
+    private final byte[] mySkipBuffer = new byte[4096];
+    private String myError;
+
+    public void run() {
+      final long pollInterval = Math.max(MIN_POLL_INTERVAL, myMaxDelay / 4);
+      try {
+        for (;;) {
+          final Batch batch = myQueue.poll(pollInterval, TimeUnit.MILLISECONDS);
+          if (batch == null) {
+            if (myStopped) return;
+            handOffIfDue();
+            continue;
+          }
+          try {
+            send(batch);
+          } finally {
+            recycle(batch);
+          }
+        }
+      } catch (InterruptedException e) {
+        // closed
+      }
+    }
+
+    private void send(final Batch batch) throws InterruptedException {
+      final ByteBuffer body = UTF_8.encode(CharBuffer.wrap(batch.myText));
+      long delay = myRetryDelay;
+      for (int attempt = 0; ; attempt++) {
+        final int status = post(body);
+        if (status / 100 == 2) {
+          mySentRecords.addAndGet(batch.myRecords);
+          mySentBatches.incrementAndGet();
+          myFailing = false;
+          return;
+        }
+
+        final boolean retryable = status < 0 || status == 429 || status >= 500;
+        if (!retryable || attempt >= myMaxRetries) {
+          myDroppedRecords.addAndGet(batch.myRecords);
+          if (!myFailing) {
+            myFailing = true;
+            LogLog.warn("Appender [" + name + "] dropped a batch of " + batch.myRecords + " records: " + myError);
+          }
+          return;
+        }
+
+        myRetries.incrementAndGet();
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          // closed while waiting to retry
+          myDroppedRecords.addAndGet(batch.myRecords);
+          throw e;
+        }
+        delay *= 2;
+      }
+    }
+
+    /**
+     * @return the status of the response, or -1 if the request failed
+     */
+    private int post(final ByteBuffer body) {
+      HttpURLConnection connection = null;
+      try {
+        connection = (HttpURLConnection) myEndpoint.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(myConnectTimeout);
+        connection.setReadTimeout(myReadTimeout);
+        connection.setRequestProperty("Content-Type", "application/x-ndjson");
+        connection.setFixedLengthStreamingMode(body.remaining());
+
+        final OutputStream out = connection.getOutputStream();
+        try {
+          out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        } finally {
+          out.close();
+        }
+
+        final int status = connection.getResponseCode();
+        final String head = readResponse(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        if (status / 100 != 2) {
+          myError = "HTTP " + status + " " + head;
+        } else if (head.contains("\"errors\":true")) {
+          LogLog.warn("The endpoint of appender [" + name + "] rejected records of a batch: " + head);
+        }
+        return status;
+      } catch (IOException e) {
+        myError = e.toString();
+        if (connection != null) {
+          connection.disconnect();
+        }
+        return -1;
+      }
+    }
+
+    /**
+     * Reads the response completely, so that the connection may be reused.
+     *
+     * @return the beginning of the response
+     */
+    private String readResponse(final InputStream in) throws IOException {
+      if (in == null) return "";
+      try {
+        int head = 0;
+        int read;
+        while (head < myResponseHead.length
+                && (read = in.read(myResponseHead, head, myResponseHead.length - head)) > 0) {
+          head += read;
+        }
+        while (in.read(mySkipBuffer) > 0) {
+          // only the beginning is reported
+        }
+        return new String(myResponseHead, 0, head, "UTF-8");
+      } finally {
+        in.close();
+      }
+    }
+  }
+}
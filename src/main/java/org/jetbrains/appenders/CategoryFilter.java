@@ -1,40 +1,63 @@
 package org.jetbrains.appenders;
 
 import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
 /**ª
  * @author Eugene Petrenko (eugene.petrenko@gmail.com)
  *
+ * Denies events of loggers which names start with a prefix, at or below
+ * the level of the prefix. Any number of rules may be set with
+ * {@link #setDenyRules(String)}, an event is denied if any rule denies it.
+ *
+ * The rules are compiled into a prefix tree, and the resolved level of
+ * each logger is cached, so deciding is a lookup and a comparison.
  */
 public class CategoryFilter extends Filter {
+  private static final Pattern SEP_PATTERN = Pattern.compile("(?:\\p{Space}*?[,;]\\p{Space}*)+");
+  private static final Pattern PAIR_SEP_PATTERN = Pattern.compile("(?:\\p{Space}*?[:=]\\p{Space}*)+");
+
+  /**
+   * The number of logger names with cached decisions, the names beyond it are resolved on every event.
+   */
+  private static final int MAX_CACHED_LOGGERS = 10000;
+
+  private static final long NOT_DENIED = Long.MIN_VALUE;
+  private static final long ALL_DENIED = Long.MAX_VALUE;
+
   private String myDenyCategoryStartsWith;
   private Level myMaxDenyLevel;
+  private String myDenyRules;
+  private volatile Rules myRules = null;
 
   @Override
   public int decide(final LoggingEvent loggingEvent) {
     if (loggingEvent == null) return NEUTRAL;
 
-    if (categoryIsDenied(loggingEvent) && levelIsDenied(loggingEvent)) {
+    final Rules rules = myRules;
+    if (rules == null) return NEUTRAL;
+
+    final String loggerName = loggingEvent.getLoggerName();
+    if (loggerName == null) return NEUTRAL;
+
+    if (loggingEvent.getLevel().toInt() <= rules.maxDenyLevel(loggerName)) {
       return DENY;
     }
 
     return NEUTRAL;
   }
 
-  private boolean categoryIsDenied(final LoggingEvent loggingEvent) {
-    if (myDenyCategoryStartsWith == null) return false;
-
-    final String loggerName = loggingEvent.getLoggerName();
-    if (loggerName == null) return false;
-
-    //NOP
-    return loggerName.startsWith(myDenyCategoryStartsWith);
-  }
-
-  private boolean levelIsDenied(final LoggingEvent loggingEvent) {
-    return myMaxDenyLevel == null || myMaxDenyLevel.isGreaterOrEqual(loggingEvent.getLevel());
+  @Override
+  public void activateOptions() {
+    compileRules();
   }
 
   public void setDenyCategory(final String denyCategory) {
@@ -43,9 +66,107 @@ public class CategoryFilter extends Filter {
     } else {
       myDenyCategoryStartsWith = denyCategory.trim();
     }
+    compileRules();
   }
 
   public void setMaxDenyLevel(final Level level) {
     myMaxDenyLevel = level;
+    compileRules();
+  }
+
+  /**
+   * Sets the comma separated list of <code>prefix:level</code> rules, e.g.
+   * <code>org.apache:INFO, com.example.noisy</code>. An event is denied if the name
+   * of its logger starts with the prefix and its level is at or below the level
+   * of the rule; a rule without a level denies all levels.
+   */
+  public void setDenyRules(final String denyRules) {
+    myDenyRules = denyRules;
+    compileRules();
+  }
+
+  private void compileRules() {
+    final Node root = new Node();
+    boolean hasRules = false;
+
+    if (myDenyCategoryStartsWith != null) {
+      root.add(myDenyCategoryStartsWith, myMaxDenyLevel == null ? ALL_DENIED : myMaxDenyLevel.toInt());
+      hasRules = true;
+    }
+
+    if (myDenyRules != null && myDenyRules.trim().length() != 0) {
+      for (String rule : SEP_PATTERN.split(myDenyRules.trim())) {
+        final String[] pair = PAIR_SEP_PATTERN.split(rule, 2);
+        long maxDenyLevel = ALL_DENIED;
+        if (pair.length > 1) {
+          final Level level = Level.toLevel(pair[1], null);
+          if (level == null) {
+            LogLog.warn("Unknown level " + pair[1] + " of the deny rule " + rule + ", the rule is ignored");
+            continue;
+          }
+          maxDenyLevel = level.toInt();
+        }
+        root.add(pair[0], maxDenyLevel);
+        hasRules = true;
+      }
+    }
+
+    myRules = hasRules ? new Rules(root) : null;
+  }
+
+  private static class Rules {
+    private final Node myRoot;
+    private final ConcurrentMap<String, Long> myCache = new ConcurrentHashMap<String, Long>();
+
+    private Rules(Node root) {
+      myRoot = root;
+    }
+
+    /**
+     * @return the highest level of the rules matching the logger
+     */
+    long maxDenyLevel(final String loggerName) {
+      final Long cached = myCache.get(loggerName);
+      if (cached != null) return cached;
+
+      final long maxDenyLevel = myRoot.find(loggerName);
+      if (myCache.size() < MAX_CACHED_LOGGERS) {
+        myCache.put(loggerName, maxDenyLevel);
+      }
+      return maxDenyLevel;
+    }
+  }
+
+  /**
+   * A node of the prefix tree, holding the highest level of the rules with the prefix ending at it.
+   */
+  private static class Node {
+    private final Map<Character, Node> myChildren = new HashMap<Character, Node>();
+    private long myMaxDenyLevel = NOT_DENIED;
+
+    void add(final String prefix, final long maxDenyLevel) {
+      Node node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        final Character ch = prefix.charAt(i);
+        Node child = node.myChildren.get(ch);
+        if (child == null) {
+          child = new Node();
+          node.myChildren.put(ch, child);
+        }
+        node = child;
+      }
+      node.myMaxDenyLevel = Math.max(node.myMaxDenyLevel, maxDenyLevel);
+    }
+
+    long find(final String name) {
+      long maxDenyLevel = myMaxDenyLevel;
+      Node node = this;
+      for (int i = 0; i < name.length(); i++) {
+        node = node.myChildren.get(name.charAt(i));
+        if (node == null) break;
+        maxDenyLevel = Math.max(maxDenyLevel, node.myMaxDenyLevel);
+      }
+      return maxDenyLevel;
+    }
   }
 }
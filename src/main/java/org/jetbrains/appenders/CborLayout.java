@@ -0,0 +1,397 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Layout encoding the same record as {@link JsonLayout} in CBOR (RFC 7049), configured with the same properties.
+ * <p/>
+ * Every event is encoded as an indefinite-length map, so a file written by {@link NextRollingFileAppender} is a
+ * sequence of CBOR data items. The timestamp is a standard date/time string (tag 0) and {@link JsonRenderable} messages
+ * are embedded as their JSON text (tag 262). With {@link JsonLayout#setCompactKeys(boolean) compactKeys} or
+ * {@link JsonLayout#setKeyAliases(String) keyAliases} a header record maps the used names back to the default ones
+ * under {@code @keys}, like the header of {@link JsonLayout}.
+ * {@link JsonLayout#setConstantsInHeader(boolean) constantsInHeader} is ignored and the constant fields are encoded
+ * in every event.
+ * <p/>
+ * When used with an appender which is not aware of {@link BinaryLayout}, events and the header are formatted as JSON.
+ */
+public class CborLayout extends JsonLayout implements BinaryLayout {
+
+    private static final int TAG_DATE_TIME = 0;
+    private static final int TAG_EMBEDDED_JSON = 262;
+    private static final int MAX_STRUCTURED_DEPTH = 32;
+
+    private final StringBuilder scratch = new StringBuilder(256);
+    private CborWriter out = new CborWriter(1024);
+
+    public int format(LoggingEvent event, OutputStream stream) throws IOException {
+        long start = getFormatLatency().start();
+        out.reset();
+        encode(event);
+        getFormatLatency().stop(start);
+
+        int size = out.size();
+        out.writeTo(stream);
+        if (out.capacity() > getMaxRetainedBufferSize()) {
+            FlightRecorderEvents.INSTANCE.largeEvent(getClass().getSimpleName(), event, size);
+            // do not hold on to the memory grown by an oversized event
+            out = new CborWriter(getBufferSize());
+        }
+        return size;
+    }
+
+    byte[] toByteArray(LoggingEvent event) {
+        out.reset();
+        encode(event);
+        return out.toByteArray();
+    }
+
+    private void encode(LoggingEvent event) {
+        getMetrics().eventFormatted();
+        out.startMap();
+
+        if (isRendered(Field.EXCEPTION)) {
+            writeException(event);
+        }
+
+        for (Map.Entry<String, String> entry : getStaticFields().entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeString(entry.getValue());
+        }
+
+        if (isRendered(Field.LEVEL)) {
+            out.writeString(name(Field.LEVEL));
+            out.writeString(event.getLevel().toString());
+        }
+
+        if (isRendered(Field.LOCATION)) {
+            writeLocation(event);
+        }
+
+        if (isRendered(Field.LOGGER)) {
+            out.writeString(name(Field.LOGGER));
+            out.writeString(String.valueOf(event.getLoggerName()));
+        }
+
+        if (isRendered(Field.MESSAGE)) {
+            out.writeString(name(Field.MESSAGE));
+            writeMessage(event);
+        }
+
+        if (isRendered(Field.REPEATED) && event instanceof RepeatedEvent) {
+            out.writeString(name(Field.REPEATED));
+            out.writeLong(((RepeatedEvent) event).getRepeated());
+        }
+
+        if (isRendered(Field.MDC)) {
+            writeMDC(event);
+        }
+
+        if (isRendered(Field.NDC)) {
+            String ndc = event.getNDC();
+            if (ndc != null && !ndc.isEmpty()) {
+                out.writeString(name(Field.NDC));
+                writeLimitedString(ndc);
+            }
+        }
+
+        if (isRendered(Field.HOST)) {
+            out.writeString(name(Field.HOST));
+            out.writeString(String.valueOf(getHostName()));
+        }
+
+        if (isRendered(Field.PATH)) {
+            String path = getSourcePath(event);
+            if (path != null) {
+                out.writeString(name(Field.PATH));
+                out.writeString(path);
+            }
+        }
+
+        if (isRendered(Field.TAGS)) {
+            String[] tags = getTags();
+            if (tags != null && tags.length != 0) {
+                out.writeString(name(Field.TAGS));
+                out.startArray();
+                for (String tag : tags) {
+                    out.writeString(tag);
+                }
+                out.end();
+            }
+        }
+
+        if (isRendered(Field.TIMESTAMP)) {
+            out.writeString(name(Field.TIMESTAMP));
+            out.writeTag(TAG_DATE_TIME);
+            out.writeString(formatTimestamp(event.getTimeStamp()));
+        }
+
+        if (isRendered(Field.THREAD)) {
+            out.writeString(name(Field.THREAD));
+            out.writeString(String.valueOf(event.getThreadName()));
+        }
+
+        if (isRendered(Field.VERSION)) {
+            out.writeString(name(Field.VERSION));
+            out.writeString("1");
+        }
+
+        out.end();
+    }
+
+    private void writeException(LoggingEvent event) {
+        ThrowableInformation throwableInfo = event.getThrowableInformation();
+        if (throwableInfo == null) {
+            return;
+        }
+
+        out.writeString(name(Field.EXCEPTION));
+        out.startMap();
+
+        @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
+        Throwable throwable = throwableInfo.getThrowable();
+        if (throwable != null) {
+            String message = throwable.getMessage();
+            if (message != null) {
+                out.writeString(name(ExceptionField.MESSAGE));
+                writeLimitedString(message);
+            }
+
+            String className = throwable.getClass().getCanonicalName();
+            if (className != null) {
+                out.writeString(name(ExceptionField.CLASS));
+                out.writeString(className);
+            }
+        }
+
+        String[] stackTrace = throwableInfo.getThrowableStrRep();
+        if (stackTrace != null && stackTrace.length != 0) {
+            out.writeString(name(ExceptionField.STACKTRACE));
+            scratch.setLength(0);
+            for (int i = 0, len = stackTrace.length; i < len; i++) {
+                scratch.append(stackTrace[i]);
+                if (i != len - 1) {
+                    scratch.append('\n');
+                }
+            }
+            writeLimitedString(scratch);
+        }
+
+        out.end();
+    }
+
+    private void writeLocation(LoggingEvent event) {
+        LocationInfo locationInfo = event.getLocationInformation();
+        if (locationInfo == null) {
+            return;
+        }
+
+        out.writeString(name(Field.LOCATION));
+        out.startMap();
+
+        String className = locationInfo.getClassName();
+        if (className != null) {
+            out.writeString(name(LocationField.CLASS));
+            out.writeString(className);
+        }
+
+        String fileName = locationInfo.getFileName();
+        if (fileName != null) {
+            out.writeString(name(LocationField.FILE));
+            out.writeString(fileName);
+        }
+
+        String methodName = locationInfo.getMethodName();
+        if (methodName != null) {
+            out.writeString(name(LocationField.METHOD));
+            out.writeString(methodName);
+        }
+
+        String lineNum = locationInfo.getLineNumber();
+        if (lineNum != null) {
+            out.writeString(name(LocationField.LINE));
+            out.writeString(lineNum);
+        }
+
+        out.end();
+    }
+
+    private void writeMessage(LoggingEvent event) {
+        Object message = event.getMessage();
+        if (isStructuredMessages() && (message instanceof JsonRenderable || message instanceof Map)) {
+            int mark = out.size();
+            try {
+                writeValue(message, 0);
+                return;
+            } catch (RuntimeException e) {
+                out.reset(mark);
+                getMetrics().formattingError();
+                LogLog.error("Unable to render structured message of " + message.getClass().getName(), e);
+            }
+        }
+        writeLimitedString(event.getRenderedMessage());
+    }
+
+    private void writeMDC(LoggingEvent event) {
+        Map<?, ?> entries = getMDC(event);
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+
+        Set<String> flattenedMdcKeys = getFlattenedMdcKeys();
+        for (String key : flattenedMdcKeys) {
+            Object val = entries.get(key);
+            if (val != null) {
+                writeMDCEntry(key, val);
+            }
+        }
+
+        boolean hasMDCField = false;
+        for (Map.Entry<?, ?> entry : entries.entrySet()) {
+            Object key = entry.getKey();
+            if (flattenedMdcKeys.contains(key)) {
+                continue;
+            }
+            if (!hasMDCField) {
+                out.writeString(name(Field.MDC));
+                out.startMap();
+                hasMDCField = true;
+            }
+            writeMDCEntry(key, entry.getValue());
+        }
+        if (hasMDCField) {
+            out.end();
+        }
+    }
+
+    private void writeMDCEntry(Object key, Object val) {
+        out.writeString(mdcKeyName(String.valueOf(key)));
+        if (isMdcTypedValues() && (isNumberLiteral(val) || val instanceof Boolean)) {
+            writeValue(val, 0);
+        } else {
+            writeLimitedString(String.valueOf(val));
+        }
+    }
+
+    private void writeValue(Object val, int depth) {
+        if (val == null) {
+            out.writeNull();
+        } else if (val instanceof String) {
+            out.writeString((String) val);
+        } else if (val instanceof Integer || val instanceof Long || val instanceof Short || val instanceof Byte
+                || val instanceof BigInteger && ((BigInteger) val).bitLength() < 64) {
+            out.writeLong(((Number) val).longValue());
+        } else if ((val instanceof Double || val instanceof Float) && isNumberLiteral(val)) {
+            // not finite numbers are written as strings, as in the JSON records
+            out.writeDouble(((Number) val).doubleValue());
+        } else if (val instanceof Boolean) {
+            out.writeBoolean((Boolean) val);
+        } else if (depth >= MAX_STRUCTURED_DEPTH) {
+            out.writeString("...");
+        } else if (val instanceof JsonRenderable) {
+            scratch.setLength(0);
+            ((JsonRenderable) val).appendJson(scratch);
+            out.writeTag(TAG_EMBEDDED_JSON);
+            out.writeUtf8Bytes(scratch, 0, scratch.length());
+        } else if (val instanceof Map) {
+            out.startMap();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) val).entrySet()) {
+                out.writeString(String.valueOf(entry.getKey()));
+                writeValue(entry.getValue(), depth + 1);
+            }
+            out.end();
+        } else if (val instanceof Collection) {
+            out.startArray();
+            for (Object item : (Collection<?>) val) {
+                writeValue(item, depth + 1);
+            }
+            out.end();
+        } else if (val instanceof Object[]) {
+            out.startArray();
+            for (Object item : (Object[]) val) {
+                writeValue(item, depth + 1);
+            }
+            out.end();
+        } else {
+            out.writeString(val.toString());
+        }
+    }
+
+    private void writeLimitedString(CharSequence val) {
+        if (val == null) {
+            out.writeString("null");
+            return;
+        }
+
+        int limit = getMaxFieldLength() > 0 ? getMaxFieldLength() : Integer.MAX_VALUE;
+        if (getMaxEventLength() > 0) {
+            limit = Math.min(limit, Math.max(0, getMaxEventLength() - out.size()));
+        }
+
+        int len = val.length();
+        if (len <= limit) {
+            out.writeString(val, 0, len);
+            return;
+        }
+
+        int end = limit;
+        if (end > 0 && Character.isHighSurrogate(val.charAt(end - 1))) {
+            // do not split a surrogate pair
+            end--;
+        }
+        StringBuilder truncated = new StringBuilder(end + 32);
+        truncated.append(val, 0, end).append(TRUNCATED_MARKER).append(len - end).append(" chars]");
+        out.writeString(truncated, 0, truncated.length());
+    }
+
+
+    public int formatHeader(OutputStream stream) throws IOException {
+        Map<String, String> dictionary = getKeysDictionary();
+        if (dictionary.isEmpty()) {
+            return 0;
+        }
+
+        out.reset();
+        out.startMap();
+        out.writeString("@keys");
+        out.startMap();
+        for (Map.Entry<String, String> entry : dictionary.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeString(entry.getValue());
+        }
+        out.end();
+        out.end();
+
+        int size = out.size();
+        out.writeTo(stream);
+        return size;
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/cbor";
+    }
+}
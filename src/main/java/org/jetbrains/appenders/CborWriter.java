@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Minimal CBOR (RFC 7049) encoder writing into a reusable, growable byte buffer.
+ * <p/>
+ * Maps and arrays are encoded with indefinite length so that their size does not have to be known upfront.
+ * Strings are encoded to UTF-8 directly into the buffer; unpaired surrogates are replaced with {@code '?'}.
+ */
+class CborWriter {
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_TAG = 6;
+
+    private static final int START_ARRAY = 0x9F;
+    private static final int START_MAP = 0xBF;
+    private static final int BREAK = 0xFF;
+    private static final int FALSE = 0xF4;
+    private static final int TRUE = 0xF5;
+    private static final int NULL = 0xF6;
+    private static final int DOUBLE = 0xFB;
+
+    private byte[] buf;
+    private int count;
+
+    CborWriter(int initialCapacity) {
+        buf = new byte[initialCapacity];
+    }
+
+    void reset() {
+        count = 0;
+    }
+
+    /**
+     * Discards everything written after the buffer had the given size.
+     */
+    void reset(int size) {
+        count = size;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int capacity() {
+        return buf.length;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    byte[] toByteArray() {
+        byte[] bytes = new byte[count];
+        System.arraycopy(buf, 0, bytes, 0, count);
+        return bytes;
+    }
+
+    void startMap() {
+        write(START_MAP);
+    }
+
+    void startArray() {
+        write(START_ARRAY);
+    }
+
+    void end() {
+        write(BREAK);
+    }
+
+    void writeNull() {
+        write(NULL);
+    }
+
+    void writeBoolean(boolean val) {
+        write(val ? TRUE : FALSE);
+    }
+
+    void writeLong(long val) {
+        if (val >= 0) {
+            writeHead(MAJOR_UNSIGNED, val);
+        } else {
+            writeHead(MAJOR_NEGATIVE, -1 - val);
+        }
+    }
+
+    void writeDouble(double val) {
+        ensureCapacity(9);
+        long bits = Double.doubleToLongBits(val);
+        buf[count++] = (byte) DOUBLE;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[count++] = (byte) (bits >>> shift);
+        }
+    }
+
+    void writeTag(long tag) {
+        writeHead(MAJOR_TAG, tag);
+    }
+
+    void writeString(String val) {
+        writeString(val, 0, val.length());
+    }
+
+    /**
+     * Writes the characters {@code [start, end)} of the given string as a text string.
+     */
+    void writeString(CharSequence val, int start, int end) {
+        writeHead(MAJOR_TEXT, utf8Length(val, start, end));
+        writeUtf8(val, start, end);
+    }
+
+    /**
+     * Writes the characters {@code [start, end)} of the given string as a byte string of their UTF-8 encoding.
+     */
+    void writeUtf8Bytes(CharSequence val, int start, int end) {
+        writeHead(MAJOR_BYTES, utf8Length(val, start, end));
+        writeUtf8(val, start, end);
+    }
+
+    private void writeHead(int major, long val) {
+        ensureCapacity(9);
+        int type = major << 5;
+        if (val < 24) {
+            buf[count++] = (byte) (type | (int) val);
+        } else if (val < 0x100) {
+            buf[count++] = (byte) (type | 24);
+            buf[count++] = (byte) val;
+        } else if (val < 0x10000) {
+            buf[count++] = (byte) (type | 25);
+            buf[count++] = (byte) (val >>> 8);
+            buf[count++] = (byte) val;
+        } else if (val < 0x100000000L) {
+            buf[count++] = (byte) (type | 26);
+            buf[count++] = (byte) (val >>> 24);
+            buf[count++] = (byte) (val >>> 16);
+            buf[count++] = (byte) (val >>> 8);
+            buf[count++] = (byte) val;
+        } else {
+            buf[count++] = (byte) (type | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[count++] = (byte) (val >>> shift);
+            }
+        }
+    }
+
+    static int utf8Length(CharSequence val, int start, int end) {
+        int len = 0;
+        for (int i = start; i < end; i++) {
+            char ch = val.charAt(i);
+            if (ch < 0x80) {
+                len++;
+            } else if (ch < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(val.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else if (isSurrogate(ch)) {
+                len++;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    private void writeUtf8(CharSequence val, int start, int end) {
+        ensureCapacity(3 * (end - start));
+        byte[] buf = this.buf;
+        int count = this.count;
+        for (int i = start; i < end; i++) {
+            char ch = val.charAt(i);
+            if (ch < 0x80) {
+                buf[count++] = (byte) ch;
+            } else if (ch < 0x800) {
+                buf[count++] = (byte) (0xC0 | ch >> 6);
+                buf[count++] = (byte) (0x80 | ch & 0x3F);
+            } else if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(val.charAt(i + 1))) {
+                int cp = Character.toCodePoint(ch, val.charAt(++i));
+                buf[count++] = (byte) (0xF0 | cp >> 18);
+                buf[count++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                buf[count++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                buf[count++] = (byte) (0x80 | cp & 0x3F);
+            } else if (isSurrogate(ch)) {
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xE0 | ch >> 12);
+                buf[count++] = (byte) (0x80 | ch >> 6 & 0x3F);
+                buf[count++] = (byte) (0x80 | ch & 0x3F);
+            }
+        }
+        this.count = count;
+    }
+
+    private static boolean isSurrogate(char ch) {
+        return ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE;
+    }
+
+    private void write(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buf.length) {
+            byte[] newBuf = new byte[Math.max(buf.length << 1, count + extra)];
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            buf = newBuf;
+        }
+    }
+}
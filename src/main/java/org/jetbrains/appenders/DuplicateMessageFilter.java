@@ -0,0 +1,237 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Suppresses events identical to an event logged shortly before, and appends
+ * one {@link RepeatedEvent} with the number of suppressed events when the burst ends.
+ *
+ * Events are identical if they have the same logger, level, message and exception
+ * class, message and top stack frame. The last events are kept in a small table
+ * indexed by the hash of the event; an event replacing a different one in the
+ * table is never suppressed. A burst ends when no identical event comes within
+ * {@link #setWindow(int) window} milliseconds, when its first suppressed event is
+ * older than the window or when its entry of the table is taken by another event;
+ * it is reported with the next event logged. An event repeating steadily is thus
+ * reported once per window.
+ *
+ * Strings, numbers and other immutable messages as well as the structured messages
+ * of {@link JsonLayout} are compared with <code>equals</code> without being rendered,
+ * so a {@link java.util.Map} or {@link JsonRenderable} message must not be modified
+ * after it was logged. Other messages are compared by their rendered text.
+ */
+public class DuplicateMessageFilter extends Filter {
+  private int myWindow = 1000;
+  private int myTableSize = 64;
+
+  private final ReentrantLock myLock = new ReentrantLock();
+  private Entry[] myTable = new Entry[myTableSize];
+  private long myNextSweep = Long.MIN_VALUE;
+  private volatile boolean myAppenderResolved;
+  private volatile Appender myAppender;
+
+  @Override
+  public int decide(final LoggingEvent loggingEvent) {
+    if (loggingEvent == null || loggingEvent instanceof RepeatedEvent) return NEUTRAL;
+
+    final String loggerName = loggingEvent.getLoggerName();
+    final Object message = messageKey(loggingEvent);
+    final String throwable = throwableKey(loggingEvent.getThrowableInformation());
+    final int level = loggingEvent.getLevel().toInt();
+    final long time = loggingEvent.getTimeStamp();
+    final int hash = hash(loggerName, level, message, throwable);
+
+    List<RepeatedEvent> ended = null;
+    boolean duplicate = false;
+    myLock.lock();
+    try {
+      if (time >= myNextSweep) {
+        ended = sweep(time);
+        myNextSweep = time + myWindow;
+      }
+
+      final Entry[] table = myTable;
+      final int index = hash & (table.length - 1);
+      Entry entry = table[index];
+      if (entry == null) {
+        entry = new Entry();
+        table[index] = entry;
+      }
+
+      if (entry.matches(hash, loggerName, level, message, throwable) && time - entry.myLastTime <= myWindow) {
+        if (entry.myRepeated > 0 && time - entry.myFirstRepeated.getTimeStamp() > myWindow) {
+          // a steady repetition is reported once per window
+          if (ended == null) ended = new ArrayList<RepeatedEvent>(1);
+          ended.add(entry.endBurst());
+        }
+        if (entry.myRepeated++ == 0) {
+          entry.myFirstRepeated = snapshot(loggingEvent);
+        }
+        entry.myLastTime = time;
+        duplicate = true;
+      } else {
+        if (entry.myRepeated > 0) {
+          if (ended == null) ended = new ArrayList<RepeatedEvent>(1);
+          ended.add(entry.endBurst());
+        }
+        entry.set(hash, loggerName, level, message, throwable, time);
+      }
+    } finally {
+      myLock.unlock();
+    }
+
+    if (ended != null) {
+      appendRepeated(loggingEvent, ended);
+    }
+    return duplicate ? DENY : NEUTRAL;
+  }
+
+  /**
+   * Sets the time in milliseconds within which an identical event is suppressed, 1000 by default.
+   */
+  public void setWindow(final int window) {
+    myWindow = window;
+  }
+
+  /**
+   * Sets the number of entries of the table of the last events, rounded up to a power of two, 64 by default.
+   */
+  public void setTableSize(final int tableSize) {
+    myTableSize = tableSize;
+    activateOptions();
+  }
+
+  @Override
+  public void activateOptions() {
+    int size = 1;
+    while (size < myTableSize) size <<= 1;
+
+    myLock.lock();
+    try {
+      if (myTable.length != size) {
+        myTable = new Entry[size];
+      }
+    } finally {
+      myLock.unlock();
+    }
+  }
+
+  /**
+   * Ends the bursts without identical events within the window and those started more than the window ago.
+   */
+  private List<RepeatedEvent> sweep(final long time) {
+    List<RepeatedEvent> ended = null;
+    for (Entry entry : myTable) {
+      if (entry != null && entry.myRepeated > 0
+              && (time - entry.myLastTime > myWindow || time - entry.myFirstRepeated.getTimeStamp() > myWindow)) {
+        if (ended == null) ended = new ArrayList<RepeatedEvent>();
+        ended.add(entry.endBurst());
+      }
+    }
+    return ended;
+  }
+
+  private void appendRepeated(final LoggingEvent loggingEvent, final List<RepeatedEvent> events) {
+    if (!myAppenderResolved) {
+      myAppender = FilterAppenders.find(this, loggingEvent.getLogger());
+      myAppenderResolved = true;
+    }
+
+    final Appender appender = myAppender;
+    for (RepeatedEvent event : events) {
+      if (appender == null) {
+        LogLog.warn("Repeated " + event.getRepeated() + " times: " + event.getRenderedMessage());
+      } else {
+        appender.doAppend(event);
+      }
+    }
+  }
+
+  /**
+   * Takes the MDC, NDC and thread into the event, as they are only available in the logging thread.
+   */
+  private static LoggingEvent snapshot(final LoggingEvent event) {
+    event.getMDCCopy();
+    event.getNDC();
+    event.getThreadName();
+    return event;
+  }
+
+  /**
+   * @return the message itself when it can be compared without rendering it, otherwise the rendered message
+   */
+  private static Object messageKey(final LoggingEvent loggingEvent) {
+    final Object message = loggingEvent.getMessage();
+    if (message instanceof String || message instanceof Number || message instanceof Boolean
+            || message instanceof Character || message instanceof Enum
+            || message instanceof JsonRenderable || message instanceof Map) {
+      return message;
+    }
+    return loggingEvent.getRenderedMessage();
+  }
+
+  private static String throwableKey(final ThrowableInformation throwableInformation) {
+    if (throwableInformation == null) return null;
+
+    final Throwable throwable = throwableInformation.getThrowable();
+    if (throwable == null) return null;
+
+    final StackTraceElement[] stackTrace = throwable.getStackTrace();
+    return throwable.getClass().getName() + ": " + throwable.getMessage()
+            + (stackTrace.length == 0 ? "" : " at " + stackTrace[0]);
+  }
+
+  private static int hash(final String loggerName, final int level, final Object message, final String throwable) {
+    int hash = loggerName == null ? 0 : loggerName.hashCode();
+    hash = 31 * hash + level;
+    hash = 31 * hash + (message == null ? 0 : message.hashCode());
+    hash = 31 * hash + (throwable == null ? 0 : throwable.hashCode());
+    // spread the higher bits to the index
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean equal(final Object a, final Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  private static class Entry {
+    private int myHash;
+    private String myLoggerName;
+    private int myLevel;
+    private Object myMessage;
+    private String myThrowable;
+    private long myLastTime;
+    private int myRepeated;
+    private LoggingEvent myFirstRepeated;
+
+    boolean matches(final int hash, final String loggerName, final int level, final Object message, final String throwable) {
+      return myHash == hash && myLevel == level && myMessage != null
+              && equal(myLoggerName, loggerName) && equal(myMessage, message) && equal(myThrowable, throwable);
+    }
+
+    void set(final int hash, final String loggerName, final int level, final Object message, final String throwable, final long time) {
+      myHash = hash;
+      myLoggerName = loggerName;
+      myLevel = level;
+      myMessage = message;
+      myThrowable = throwable;
+      myLastTime = time;
+    }
+
+    RepeatedEvent endBurst() {
+      final RepeatedEvent event = new RepeatedEvent(myFirstRepeated, myLastTime, myRepeated);
+      myRepeated = 0;
+      myFirstRepeated = null;
+      return event;
+    }
+  }
+}
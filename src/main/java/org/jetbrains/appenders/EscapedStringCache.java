@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded cache of JSON-escaped strings, used for values which repeat on nearly every event
+ * (logger names, thread names) so that they are appended with a single bulk copy.
+ * <p/>
+ * The cache is direct-mapped: every string has exactly one slot chosen by its hash code and a colliding
+ * string simply replaces the previous entry. Entries are immutable, so the cache may be shared by
+ * concurrently formatting threads without locking.
+ */
+class EscapedStringCache {
+
+    /**
+     * Strings longer than this are escaped in place and never cached.
+     */
+    static final int MAX_CACHED_LENGTH = 256;
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+
+    // striped, as every formatting thread counts on every event
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+
+    EscapedStringCache(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        entries = new AtomicReferenceArray<Entry>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Appends the escaped form of the given string (without quotes) to the buffer.
+     */
+    void append(StringBuilder out, String val) {
+        if (val.length() > MAX_CACHED_LENGTH) {
+            JsonLayout.appendValue(out, val);
+            return;
+        }
+
+        int hash = val.hashCode();
+        int idx = (hash ^ (hash >>> 16)) & mask;
+
+        Entry entry = entries.get(idx);
+        if (entry != null && (entry.key == val || entry.key.equals(val))) {
+            hits.increment();
+            out.append(entry.escaped);
+            return;
+        }
+        misses.increment();
+
+        int start = out.length();
+        JsonLayout.appendValue(out, val);
+        char[] escaped = new char[out.length() - start];
+        out.getChars(start, out.length(), escaped, 0);
+        entries.set(idx, new Entry(val, escaped));
+    }
+
+    int capacity() {
+        return entries.length();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final char[] escaped;
+
+        private Entry(String key, char[] escaped) {
+            this.key = key;
+            this.escaped = escaped;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Category;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.Filter;
+
+import java.util.Enumeration;
+
+/**
+ * Finds the appender a filter is attached to, so that the filter can append events of its own.
+ */
+class FilterAppenders {
+  private FilterAppenders() {
+  }
+
+  /**
+   * @return the first appender of the logger or its parents having the filter, or <code>null</code>
+   */
+  static Appender find(final Filter filter, final Category logger) {
+    for (Category parent = logger; parent != null; parent = parent.getParent()) {
+      @SuppressWarnings("unchecked")
+      final Appender appender = find(filter, parent.getAllAppenders());
+      if (appender != null) {
+        return appender;
+      }
+    }
+    return null;
+  }
+
+  private static Appender find(final Filter filter, final Enumeration<? extends Appender> appenders) {
+    if (appenders == null) return null;
+
+    while (appenders.hasMoreElements()) {
+      final Appender appender = appenders.nextElement();
+      for (Filter f = appender.getFilter(); f != null; f = f.getNext()) {
+        if (f == filter) {
+          return appender;
+        }
+      }
+      if (appender instanceof AppenderAttachable) {
+        @SuppressWarnings("unchecked")
+        final Appender nested = find(filter, ((AppenderAttachable) appender).getAllAppenders());
+        if (nested != null) {
+          return nested;
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Java Flight Recorder events of the appenders and layouts.
+ * <p/>
+ * This class does not refer to the {@code jdk.jfr} API, so it loads on any JVM. When the API is available and
+ * {@code JdkFlightRecorderEvents} is built (the {@code jfr} profile), {@link #INSTANCE} is that class, otherwise it
+ * records nothing. Timed events are started
+ * by a {@code begin} method which returns the event, or {@code null} when the event is not recorded, and passed
+ * to the matching {@code end} method.
+ */
+class FlightRecorderEvents {
+
+    static final FlightRecorderEvents INSTANCE = load();
+
+    private static FlightRecorderEvents load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (FlightRecorderEvents) Class.forName(FlightRecorderEvents.class.getPackage().getName()
+                + ".JdkFlightRecorderEvents").getDeclaredConstructor().newInstance();
+        } catch (Throwable e) {
+            return new FlightRecorderEvents();
+        }
+    }
+
+    Object beginRollover() {
+        return null;
+    }
+
+    void endRollover(Object event, String appender, String oldFile, String newFile, int filesDeleted) {
+    }
+
+    Object beginFlush() {
+        return null;
+    }
+
+    void endFlush(Object event, String appender, String file) {
+    }
+
+    Object beginAppend() {
+        return null;
+    }
+
+    void endAppend(Object event, String appender, LoggingEvent loggingEvent) {
+    }
+
+    /**
+     * Records an event which grew the buffer of a layout beyond its retained size.
+     */
+    void largeEvent(String layout, LoggingEvent loggingEvent, int size) {
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads records of a file written by {@link NextRollingFileAppender} with
+ * {@link NextRollingFileAppender#setLengthPrefixed(boolean) length prefixed} records.
+ *
+ * Every record is preceded by a header of {@link #HEADER_LENGTH} ASCII characters:
+ * the length of the payload in bytes as 8 lowercase hexadecimal digits followed by <code>':'</code>.
+ * This allows skipping records without looking at their payload.
+ *
+ * A record is complete when both its header and the whole payload are present.
+ * Only the last record of a file may be incomplete, if the writer was interrupted.
+ * The reader never returns an incomplete record: {@link #next()} and {@link #skip()}
+ * stay at its beginning, so a follower of a growing file simply retries later,
+ * while a reader of a file which is not written any more drops the incomplete tail.
+ * A header which is not made of hex digits and <code>':'</code> means the file is
+ * not framed or is corrupted, and is reported with an {@link IOException}.
+ */
+public class FramedRecordReader implements Closeable {
+
+    public static final int HEADER_LENGTH = 9;
+
+    private static final char SEPARATOR = ':';
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private final RandomAccessFile file;
+    private final byte[] header = new byte[HEADER_LENGTH];
+    private long position;
+
+    public FramedRecordReader(File source) throws IOException {
+        file = new RandomAccessFile(source, "r");
+    }
+
+    /**
+     * @return the payload of the next record or <code>null</code> if there is no complete record yet
+     */
+    public byte[] next() throws IOException {
+        int length = readLength();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        file.seek(position + HEADER_LENGTH);
+        file.readFully(payload);
+        position += HEADER_LENGTH + length;
+        return payload;
+    }
+
+    /**
+     * Moves to the next record without reading the payload of the current one.
+     *
+     * @return <code>false</code> if there is no complete record yet
+     */
+    public boolean skip() throws IOException {
+        int length = readLength();
+        if (length < 0) {
+            return false;
+        }
+
+        position += HEADER_LENGTH + length;
+        return true;
+    }
+
+    /**
+     * @return the offset of the next record in the file
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private int readLength() throws IOException {
+        long available = file.length() - position;
+        if (available < HEADER_LENGTH) {
+            return -1;
+        }
+
+        file.seek(position);
+        file.readFully(header);
+        int length = parseHeader(header, position);
+        return available - HEADER_LENGTH < length ? -1 : length;
+    }
+
+    private static int parseHeader(byte[] header, long offset) throws IOException {
+        long length = 0;
+        for (int i = 0; i < HEADER_LENGTH - 1; i++) {
+            int digit = Character.digit(header[i], 16);
+            if (digit < 0) {
+                throw new IOException("Malformed record header at offset " + offset);
+            }
+            length = (length << 4) | digit;
+        }
+        if (header[HEADER_LENGTH - 1] != SEPARATOR || length > Integer.MAX_VALUE) {
+            throw new IOException("Malformed record header at offset " + offset);
+        }
+        return (int) length;
+    }
+
+    /**
+     * Formats the header of a record with the payload of the given length in bytes.
+     */
+    static String header(int length) {
+        char[] chars = new char[HEADER_LENGTH];
+        for (int i = HEADER_LENGTH - 2, val = length; i >= 0; i--, val >>>= 4) {
+            chars[i] = HEX_CHARS[val & 0xF];
+        }
+        chars[HEADER_LENGTH - 1] = SEPARATOR;
+        return new String(chars);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Records {@link FlightRecorderEvents} with the {@code jdk.jfr} API, loaded only when the API is available.
+ * <p/>
+ * The thresholds of the timed events are set in the recording settings, e.g.
+ * {@code org.jetbrains.appenders.SlowAppend#threshold=50 ms}.
+ */
+class JdkFlightRecorderEvents extends FlightRecorderEvents {
+
+    private static final RolloverEvent ROLLOVER = new RolloverEvent();
+    private static final FlushEvent FLUSH = new FlushEvent();
+    private static final SlowAppendEvent SLOW_APPEND = new SlowAppendEvent();
+    private static final LargeEvent LARGE_EVENT = new LargeEvent();
+
+    @Override
+    Object beginRollover() {
+        if (!ROLLOVER.isEnabled()) {
+            return null;
+        }
+        RolloverEvent event = new RolloverEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endRollover(Object event, String appender, String oldFile, String newFile, int filesDeleted) {
+        if (event == null) {
+            return;
+        }
+        RolloverEvent rollover = (RolloverEvent) event;
+        rollover.end();
+        if (rollover.shouldCommit()) {
+            rollover.appender = appender;
+            rollover.oldFile = oldFile;
+            rollover.newFile = newFile;
+            rollover.filesDeleted = filesDeleted;
+            rollover.commit();
+        }
+    }
+
+    @Override
+    Object beginFlush() {
+        if (!FLUSH.isEnabled()) {
+            return null;
+        }
+        FlushEvent event = new FlushEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endFlush(Object event, String appender, String file) {
+        if (event == null) {
+            return;
+        }
+        FlushEvent flush = (FlushEvent) event;
+        flush.end();
+        if (flush.shouldCommit()) {
+            flush.appender = appender;
+            flush.file = file;
+            flush.commit();
+        }
+    }
+
+    @Override
+    Object beginAppend() {
+        if (!SLOW_APPEND.isEnabled()) {
+            return null;
+        }
+        SlowAppendEvent event = new SlowAppendEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endAppend(Object event, String appender, LoggingEvent loggingEvent) {
+        if (event == null) {
+            return;
+        }
+        SlowAppendEvent append = (SlowAppendEvent) event;
+        append.end();
+        if (append.shouldCommit()) {
+            append.appender = appender;
+            append.logger = loggingEvent.getLoggerName();
+            append.level = String.valueOf(loggingEvent.getLevel());
+            append.commit();
+        }
+    }
+
+    @Override
+    void largeEvent(String layout, LoggingEvent loggingEvent, int size) {
+        if (!LARGE_EVENT.isEnabled()) {
+            return;
+        }
+        LargeEvent event = new LargeEvent();
+        event.layout = layout;
+        event.logger = loggingEvent.getLoggerName();
+        event.size = size;
+        event.commit();
+    }
+
+    @Name("org.jetbrains.appenders.Rollover")
+    @Label("Log File Rollover")
+    @Category({"Logging", "log4j"})
+    @StackTrace(false)
+    static class RolloverEvent extends Event {
+        @Label("Appender")
+        String appender;
+
+        @Label("Old File")
+        String oldFile;
+
+        @Label("New File")
+        String newFile;
+
+        @Label("Files Deleted")
+        @Description("Old files deleted to keep the maximum number of backups")
+        int filesDeleted;
+    }
+
+    @Name("org.jetbrains.appenders.Flush")
+    @Label("Log File Flush")
+    @Category({"Logging", "log4j"})
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class FlushEvent extends Event {
+        @Label("Appender")
+        String appender;
+
+        @Label("File")
+        String file;
+    }
+
+    @Name("org.jetbrains.appenders.SlowAppend")
+    @Label("Slow Log Append")
+    @Description("Formatting and writing an event, including a rollover, took longer than the threshold")
+    @Category({"Logging", "log4j"})
+    @Threshold("20 ms")
+    static class SlowAppendEvent extends Event {
+        @Label("Appender")
+        String appender;
+
+        @Label("Logger")
+        String logger;
+
+        @Label("Level")
+        String level;
+    }
+
+    @Name("org.jetbrains.appenders.LargeEvent")
+    @Label("Large Log Event")
+    @Description("An event rendered beyond the retained buffer size of the layout")
+    @Category({"Logging", "log4j"})
+    @StackTrace(false)
+    static class LargeEvent extends Event {
+        @Label("Layout")
+        String layout;
+
+        @Label("Logger")
+        String logger;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+}
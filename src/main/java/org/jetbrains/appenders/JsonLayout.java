@@ -25,19 +25,25 @@ import org.apache.log4j.spi.ThrowableInformation;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 public class JsonLayout extends Layout {
@@ -48,50 +54,57 @@ public class JsonLayout extends Layout {
     private static final char[] HEX_CHARS =
         {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
 
-    private enum LocationField {
-        CLASS("class"),
-        FILE("file"),
-        LINE("line"),
-        METHOD("method");
+    enum LocationField {
+        CLASS("class", "c"),
+        FILE("file", "f"),
+        LINE("line", "l"),
+        METHOD("method", "m");
 
         private final String val;
+        private final String compactVal;
 
-        LocationField(String val) {
+        LocationField(String val, String compactVal) {
             this.val = val;
+            this.compactVal = compactVal;
         }
     }
 
-    private enum ExceptionField {
-        CLASS("class"),
-        MESSAGE("message"),
-        STACKTRACE("stacktrace");
+    enum ExceptionField {
+        CLASS("class", "c"),
+        MESSAGE("message", "m"),
+        STACKTRACE("stacktrace", "s");
 
         private final String val;
+        private final String compactVal;
 
-        ExceptionField(String val) {
+        ExceptionField(String val, String compactVal) {
             this.val = val;
+            this.compactVal = compactVal;
         }
     }
 
-    private enum Field {
-        EXCEPTION("exception"),
-        LEVEL("severity"),
-        LOCATION("location"),
-        LOGGER("logger"),
-        MESSAGE("message"),
-        MDC("mdc"),
-        NDC("ndc"),
-        HOST("host"),
-        PATH("path"),
-        TAGS("tags"),
-        TIMESTAMP("@timestamp"),
-        THREAD("thread"),
-        VERSION("@version");
+    enum Field {
+        EXCEPTION("exception", "x"),
+        LEVEL("severity", "s"),
+        LOCATION("location", "o"),
+        LOGGER("logger", "l"),
+        MESSAGE("message", "m"),
+        REPEATED("repeated", "r"),
+        MDC("mdc", "c"),
+        NDC("ndc", "n"),
+        HOST("host", "h"),
+        PATH("path", "p"),
+        TAGS("tags", "g"),
+        TIMESTAMP("@timestamp", "t"),
+        THREAD("thread", "th"),
+        VERSION("@version", "v");
 
         private final String val;
+        private final String compactVal;
 
-        Field(String exception) {
+        Field(String exception, String compactVal) {
             val = exception;
+            this.compactVal = compactVal;
         }
 
         public static Field fromValue(String val) {
@@ -107,150 +120,307 @@ public class JsonLayout extends Layout {
 
     private static final String VERSION = "1";
 
+    private static final int DEFAULT_NAME_CACHE_SIZE = 512;
+    private static final int MAX_STRUCTURED_DEPTH = 32;
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+    private static final int DEFAULT_MAX_RETAINED_BUFFER_SIZE = 32 * 1024;
+    static final String TRUNCATED_MARKER = "...[truncated ";
+
+    /**
+     * The last event rendered by any layout on the current thread, shared by layouts with the same configuration.
+     * The event is referenced weakly and a text longer than the retained buffer size is not kept, so an idle thread
+     * holds on to neither.
+     */
+    private static final ThreadLocal<RenderedEvent> lastRendered = new ThreadLocal<RenderedEvent>() {
+        @Override
+        protected RenderedEvent initialValue() {
+            return new RenderedEvent();
+        }
+    };
+
+    private static final class RenderedEvent {
+        private WeakReference<LoggingEvent> event;
+        private String fingerprint;
+        private String path;
+        private String text;
+    }
+
+    /**
+     * The path of the file written with the layout and its quoted JSON value, replaced as a whole when the
+     * appender opens another file.
+     */
+    private static final class SourcePath {
+        private final String path;
+        private final String quoted;
+
+        private SourcePath(String path, String quoted) {
+            this.path = path;
+            this.quoted = quoted;
+        }
+    }
+
     private String tagsVal;
     private String fieldsVal;
     private String includedFields;
     private String excludedFields;
+    private String flattenedMdcKeysVal;
+    private String keyAliasesVal;
+    private boolean compactKeys;
+    private boolean constantsInHeader;
+    private int nameCacheSize = DEFAULT_NAME_CACHE_SIZE;
+    private boolean mdcTypedValues;
+    private boolean structuredMessages = true;
+    private int maxFieldLength;
+    private int maxEventLength;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int maxRetainedBufferSize = DEFAULT_MAX_RETAINED_BUFFER_SIZE;
+    private boolean reuseRenderedEvents = true;
 
     private final Map<String, String> fields;
     private final Set<Field> renderedFields;
+    private final Set<Field> eventFields;
     private final DateFormat dateFormat;
     private final Date date;
-    private final StringBuilder buf;
-
+    private StringBuilder buf;
+    /**
+     * The position of the event being rendered in its buffer.
+     */
+    private int eventStart;
+    private final Set<String> flattenedMdcKeys;
+    private final EscapedStringCache mdcKeyCache;
+    private final String[] fieldNames;
+    private final String[] locationNames;
+    private final String[] exceptionNames;
+    private final char[][] fieldKeys;
+    private final char[][] locationKeys;
+    private final char[][] exceptionKeys;
+    private final Map<String, String> mdcKeyAliases;
+
+    private EscapedStringCache nameCache;
     private String[] tags;
-    private String path;
-    private boolean pathResolved;
+    private volatile SourcePath sourcePath;
     private String hostName;
     private boolean ignoresThrowable;
+    private String keysHeader;
+    private Map<String, String> keysDictionary = Collections.emptyMap();
+    private String fingerprint;
+    private final LayoutMetrics metrics = new LayoutMetrics(this);
+    private final LatencyHistogram formatLatency = new LatencyHistogram();
 
     public JsonLayout() {
         fields = new HashMap<String, String>();
 
         renderedFields = EnumSet.allOf(Field.class);
         renderedFields.remove(Field.LOCATION);
+        eventFields = EnumSet.copyOf(renderedFields);
 
         dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
         dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
 
         date = new Date();
-        buf = new StringBuilder(32*1024);
+        buf = new StringBuilder(bufferSize);
+
+        flattenedMdcKeys = new HashSet<String>();
+        mdcKeyCache = new EscapedStringCache(DEFAULT_NAME_CACHE_SIZE);
+
+        fieldNames = new String[Field.values().length];
+        locationNames = new String[LocationField.values().length];
+        exceptionNames = new String[ExceptionField.values().length];
+        fieldKeys = new char[Field.values().length][];
+        locationKeys = new char[LocationField.values().length][];
+        exceptionKeys = new char[ExceptionField.values().length][];
+        mdcKeyAliases = new HashMap<String, String>();
+        resolveKeys();
     }
 
     @Override
     public String format(LoggingEvent event) {
+        long start = formatLatency.start();
+        try {
+            return formatOrReuse(event);
+        } finally {
+            formatLatency.stop(start);
+        }
+    }
+
+    /**
+     * Appends the record of the event, with its line break, to {@code out}, e.g. a batch of records,
+     * without creating a string for it. {@link #setMaxEventLength(int) maxEventLength} applies to
+     * the characters appended.
+     *
+     * @return the number of characters appended
+     */
+    public int format(LoggingEvent event, StringBuilder out) {
+        long start = formatLatency.start();
+        try {
+            int length = out.length();
+            renderTo(event, out);
+            return out.length() - length;
+        } finally {
+            formatLatency.stop(start);
+        }
+    }
+
+    private String formatOrReuse(LoggingEvent event) {
+        if (fingerprint == null) {
+            return render(event);
+        }
+
+        // the path is the only rendered value which depends on the appender the layout is attached to
+        String path = eventFields.contains(Field.PATH) ? getSourcePath(event) : null;
+        RenderedEvent rendered = lastRendered.get();
+        if (rendered.event != null && rendered.event.get() == event && rendered.fingerprint == fingerprint
+            && (path == null ? rendered.path == null : path.equals(rendered.path))) {
+            metrics.eventReused();
+            return rendered.text;
+        }
+        String text = render(event);
+        if (text.length() > maxRetainedBufferSize) {
+            rendered.event = null;
+            rendered.text = null;
+            return text;
+        }
+        rendered.event = new WeakReference<LoggingEvent>(event);
+        rendered.fingerprint = fingerprint;
+        rendered.path = path;
+        rendered.text = text;
+        return text;
+    }
+
+    private String render(LoggingEvent event) {
         buf.setLength(0);
+        renderTo(event, buf);
+
+        String result = buf.toString();
+        if (buf.capacity() > maxRetainedBufferSize) {
+            FlightRecorderEvents.INSTANCE.largeEvent(getClass().getSimpleName(), event, buf.length());
+            // do not hold on to the memory grown by an oversized event
+            buf = new StringBuilder(bufferSize);
+        }
+        return result;
+    }
+
+    private void renderTo(LoggingEvent event, StringBuilder buf) {
+        metrics.eventFormatted();
+        eventStart = buf.length();
 
         buf.append('{');
 
         boolean hasPrevField = false;
-        if (renderedFields.contains(Field.EXCEPTION)) {
+        if (eventFields.contains(Field.EXCEPTION)) {
             hasPrevField = appendException(buf, event);
         }
 
-        if (hasPrevField) {
-            buf.append(',');
+        if (!constantsInHeader) {
+            if (hasPrevField) {
+                buf.append(',');
+            }
+            hasPrevField = appendFields(buf, event);
         }
-        hasPrevField = appendFields(buf, event);
 
-        if (renderedFields.contains(Field.LEVEL)) {
+        if (eventFields.contains(Field.LEVEL)) {
             if (hasPrevField) {
                 buf.append(',');
             }
-            appendField(buf, Field.LEVEL.val, event.getLevel().toString());
+            appendField(buf, key(Field.LEVEL), event.getLevel().toString());
             hasPrevField = true;
         }
 
-        if (renderedFields.contains(Field.LOCATION)) {
+        if (eventFields.contains(Field.LOCATION)) {
             if (hasPrevField) {
                 buf.append(',');
             }
             hasPrevField = appendLocation(buf, event);
         }
 
-        if (renderedFields.contains(Field.LOGGER)) {
+        if (eventFields.contains(Field.LOGGER)) {
+            if (hasPrevField) {
+                buf.append(',');
+            }
+            appendCachedField(buf, key(Field.LOGGER), event.getLoggerName());
+            hasPrevField = true;
+        }
+
+        if (eventFields.contains(Field.MESSAGE)) {
             if (hasPrevField) {
                 buf.append(',');
             }
-            appendField(buf, Field.LOGGER.val, event.getLoggerName());
+            appendMessage(buf, event);
             hasPrevField = true;
         }
 
-        if (renderedFields.contains(Field.MESSAGE)) {
+        if (eventFields.contains(Field.REPEATED) && event instanceof RepeatedEvent) {
             if (hasPrevField) {
                 buf.append(',');
             }
-            appendField(buf, Field.MESSAGE.val, event.getRenderedMessage());
+            buf.append(key(Field.REPEATED)).append(':').append(((RepeatedEvent) event).getRepeated());
             hasPrevField = true;
         }
 
-        if (renderedFields.contains(Field.MDC)) {
+        if (eventFields.contains(Field.MDC)) {
             if (hasPrevField) {
                 buf.append(',');
             }
             hasPrevField = appendMDC(buf, event);
         }
 
-        if (renderedFields.contains(Field.NDC)) {
+        if (eventFields.contains(Field.NDC)) {
             String ndc = event.getNDC();
             if (ndc != null && !ndc.isEmpty()) {
                 if (hasPrevField) {
                     buf.append(',');
                 }
-                appendField(buf, Field.NDC.val, event.getNDC());
+                appendLimitedField(buf, key(Field.NDC), ndc);
                 hasPrevField = true;
             }
         }
 
-        if (renderedFields.contains(Field.HOST)) {
+        if (eventFields.contains(Field.HOST)) {
             if (hasPrevField) {
                 buf.append(',');
             }
-            appendField(buf, Field.HOST.val, hostName);
+            appendField(buf, key(Field.HOST), getHostName());
             hasPrevField = true;
         }
 
-        if (renderedFields.contains(Field.PATH)) {
+        if (eventFields.contains(Field.PATH)) {
             if (hasPrevField) {
                 buf.append(',');
             }
             hasPrevField = appendSourcePath(buf, event);
         }
 
-        if (renderedFields.contains(Field.TAGS)) {
+        if (eventFields.contains(Field.TAGS)) {
             if (hasPrevField) {
                 buf.append(',');
             }
             hasPrevField = appendTags(buf, event);
         }
 
-        if (renderedFields.contains(Field.TIMESTAMP)) {
+        if (eventFields.contains(Field.TIMESTAMP)) {
             if (hasPrevField) {
                 buf.append(',');
             }
-            date.setTime(event.getTimeStamp());
-            appendField(buf, Field.TIMESTAMP.val, dateFormat.format(date));
+            appendField(buf, key(Field.TIMESTAMP), formatTimestamp(event.getTimeStamp()));
             hasPrevField = true;
         }
 
-        if (renderedFields.contains(Field.THREAD)) {
+        if (eventFields.contains(Field.THREAD)) {
             if (hasPrevField) {
                 buf.append(',');
             }
-            appendField(buf, Field.THREAD.val, event.getThreadName());
+            appendCachedField(buf, key(Field.THREAD), event.getThreadName());
             hasPrevField = true;
         }
 
-        if (renderedFields.contains(Field.VERSION)) {
+        if (eventFields.contains(Field.VERSION)) {
             if (hasPrevField) {
                 buf.append(',');
             }
-            appendField(buf, Field.VERSION.val, VERSION);
+            appendField(buf, key(Field.VERSION), VERSION);
         }
 
         buf.append("}\n");
-
-        return buf.toString();
     }
 
     @SuppressWarnings("UnusedParameters")
@@ -271,20 +441,43 @@ public class JsonLayout extends Layout {
     }
 
     private boolean appendSourcePath(StringBuilder buf, LoggingEvent event) {
-        if (!pathResolved) {
-            @SuppressWarnings("unchecked")
+        SourcePath sourcePath = resolveSourcePath(event);
+        if (sourcePath.path != null) {
+            buf.append(key(Field.PATH)).append(':').append(sourcePath.quoted);
+            return true;
+        }
+        return false;
+    }
+
+    String getSourcePath(LoggingEvent event) {
+        return resolveSourcePath(event).path;
+    }
+
+    /**
+     * Returns the path pushed by the appender with {@link #fileOpened(String)}. Only for appenders which do not
+     * push it, the path is looked up in the appenders of the logger on the first event.
+     */
+    private SourcePath resolveSourcePath(LoggingEvent event) {
+        SourcePath resolved = sourcePath;
+        if (resolved == null) {
+            String path = null;
             Appender appender = findLayoutAppender(event.getLogger());
             if (appender instanceof FileAppender) {
-                FileAppender fileAppender = (FileAppender) appender;
-                path = getAppenderPath(fileAppender);
+                path = getAppenderPath((FileAppender) appender);
             }
-            pathResolved = true;
+            resolved = newSourcePath(path);
+            sourcePath = resolved;
         }
-        if (path != null) {
-            appendField(buf, Field.PATH.val, path);
-            return true;
+        return resolved;
+    }
+
+    private SourcePath newSourcePath(String path) {
+        if (path == null) {
+            return new SourcePath(null, null);
         }
-        return false;
+        StringBuilder quoted = new StringBuilder(path.length() + 2);
+        appendQuotedValue(quoted, path);
+        return new SourcePath(path, quoted.toString());
     }
 
     private Appender findLayoutAppender(Category logger) {
@@ -320,13 +513,17 @@ public class JsonLayout extends Layout {
     }
 
     private String getAppenderPath(FileAppender fileAppender) {
+        return getPath(fileAppender.getFile());
+    }
+
+    private String getPath(String fileName) {
         String path = null;
         try {
-            String fileName = fileAppender.getFile();
             if (fileName != null && !fileName.isEmpty()) {
                 path = new File(fileName).getCanonicalPath();
             }
         } catch (IOException e) {
+            metrics.formattingError();
             LogLog.error("Unable to retrieve appender's file name", e);
         }
         return path;
@@ -338,7 +535,7 @@ public class JsonLayout extends Layout {
             return false;
         }
 
-        appendQuotedName(builder, Field.TAGS.val);
+        builder.append(key(Field.TAGS));
         builder.append(":[");
         for (int i = 0, len = tags.length; i < len; i++) {
             appendQuotedValue(builder, tags[i]);
@@ -351,27 +548,135 @@ public class JsonLayout extends Layout {
         return true;
     }
 
+    private void appendMessage(StringBuilder buf, LoggingEvent event) {
+        Object message = event.getMessage();
+        if (structuredMessages && (message instanceof JsonRenderable || message instanceof Map)) {
+            int mark = buf.length();
+            int limit = valueLimit(buf);
+            try {
+                buf.append(key(Field.MESSAGE));
+                buf.append(':');
+                int start = buf.length();
+                appendJsonValue(buf, message, 0);
+                if (buf.length() - start <= limit) {
+                    return;
+                }
+                // too large to be rendered as is, fall back to the truncated string
+                buf.setLength(mark);
+            } catch (RuntimeException e) {
+                buf.setLength(mark);
+                metrics.formattingError();
+                LogLog.error("Unable to render structured message of " + message.getClass().getName(), e);
+            }
+        }
+        appendLimitedField(buf, key(Field.MESSAGE), event.getRenderedMessage());
+    }
+
     private boolean appendMDC(StringBuilder buf, LoggingEvent event) {
-        Map<?, ?> entries = event.getProperties();
-        if (entries.isEmpty()) {
+        Map<?, ?> entries = getMDC(event);
+        if (entries == null || entries.isEmpty()) {
             return false;
         }
 
-        appendQuotedName(buf, Field.MDC.val);
+        boolean hasPrevField = false;
+        if (!flattenedMdcKeys.isEmpty()) {
+            for (String key : flattenedMdcKeys) {
+                Object val = entries.get(key);
+                if (val != null) {
+                    if (hasPrevField) {
+                        buf.append(',');
+                    }
+                    appendMDCEntry(buf, key, val);
+                    hasPrevField = true;
+                }
+            }
+        }
+
+        int mark = buf.length();
+        if (hasPrevField) {
+            buf.append(',');
+        }
+        buf.append(key(Field.MDC));
         buf.append(":{");
 
-        for (Iterator<? extends Map.Entry<?, ?>> iter = entries.entrySet().iterator(); iter.hasNext(); ) {
-            Map.Entry<?, ?> entry = iter.next();
-            appendField(buf, entry.getKey(), entry.getValue());
-            if (iter.hasNext()) {
+        boolean hasMDCField = false;
+        for (Map.Entry<?, ?> entry : entries.entrySet()) {
+            Object key = entry.getKey();
+            if (flattenedMdcKeys.contains(key)) {
+                continue;
+            }
+            if (hasMDCField) {
                 buf.append(',');
             }
+            appendMDCEntry(buf, key, entry.getValue());
+            hasMDCField = true;
+        }
+
+        if (!hasMDCField) {
+            buf.setLength(mark);
+            return hasPrevField;
         }
         buf.append('}');
 
         return true;
     }
 
+    Map<?, ?> getMDC(LoggingEvent event) {
+        // the copy is taken once per event and kept by it, so the layouts of all appenders share it; it holds the
+        // explicit properties (RewriteAppender, setProperty) and the MDC of the thread which logged the event
+        return event.getProperties();
+    }
+
+    private void appendMDCEntry(StringBuilder buf, Object key, Object val) {
+        buf.append('\"');
+        mdcKeyCache.append(buf, mdcKeyName(String.valueOf(key)));
+        buf.append("\":");
+        if (mdcTypedValues && appendLiteral(buf, val)) {
+            return;
+        }
+        appendLimitedValue(buf, String.valueOf(val));
+    }
+
+    /**
+     * @return whether the value is written as a number literal: an integer or a finite floating point number of the
+     * JDK; other numbers, such as {@code BigDecimal} or custom ones, may not print as valid JSON and are quoted
+     */
+    static boolean isNumberLiteral(Object val) {
+        if (val instanceof Integer || val instanceof Long || val instanceof Short || val instanceof Byte
+                || val instanceof BigInteger) {
+            return true;
+        }
+        if (val instanceof Double || val instanceof Float) {
+            double d = ((Number) val).doubleValue();
+            return !Double.isNaN(d) && !Double.isInfinite(d);
+        }
+        return false;
+    }
+
+    private static boolean appendLiteral(StringBuilder out, Object val) {
+        if (val instanceof Integer || val instanceof Long || val instanceof Short || val instanceof Byte) {
+            out.append(((Number) val).longValue());
+            return true;
+        }
+        if (val instanceof Double || val instanceof Float) {
+            double d = ((Number) val).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return false;
+            }
+            out.append(val);
+            return true;
+        }
+        if (val instanceof BigInteger) {
+            out.append(val);
+            return true;
+        }
+        if (val instanceof Boolean) {
+            out.append(((Boolean) val).booleanValue());
+            return true;
+        }
+        return false;
+    }
+
     private boolean appendLocation(StringBuilder buf, LoggingEvent event) {
         LocationInfo locationInfo = event.getLocationInformation();
         if (locationInfo == null) {
@@ -380,12 +685,12 @@ public class JsonLayout extends Layout {
 
         boolean hasPrevField = false;
 
-        appendQuotedName(buf, Field.LOCATION.val);
+        buf.append(key(Field.LOCATION));
         buf.append(":{");
 
         String className = locationInfo.getClassName();
         if (className != null) {
-            appendField(buf, LocationField.CLASS.val, className);
+            appendField(buf, key(LocationField.CLASS), className);
             hasPrevField = true;
         }
 
@@ -394,7 +699,7 @@ public class JsonLayout extends Layout {
             if (hasPrevField) {
                 buf.append(',');
             }
-            appendField(buf, LocationField.FILE.val, fileName);
+            appendField(buf, key(LocationField.FILE), fileName);
             hasPrevField = true;
         }
 
@@ -403,7 +708,7 @@ public class JsonLayout extends Layout {
             if (hasPrevField) {
                 buf.append(',');
             }
-            appendField(buf, LocationField.METHOD.val, methodName);
+            appendField(buf, key(LocationField.METHOD), methodName);
             hasPrevField = true;
         }
 
@@ -412,7 +717,7 @@ public class JsonLayout extends Layout {
             if (hasPrevField) {
                 buf.append(',');
             }
-            appendField(buf, LocationField.LINE.val, lineNum);
+            appendField(buf, key(LocationField.LINE), lineNum);
         }
 
         buf.append('}');
@@ -426,7 +731,7 @@ public class JsonLayout extends Layout {
             return false;
         }
 
-        appendQuotedName(buf, Field.EXCEPTION.val);
+        buf.append(key(Field.EXCEPTION));
         buf.append(":{");
 
         boolean hasPrevField = false;
@@ -436,7 +741,7 @@ public class JsonLayout extends Layout {
         if (throwable != null) {
             String message = throwable.getMessage();
             if (message != null) {
-                appendField(buf, ExceptionField.MESSAGE.val, message);
+                appendLimitedField(buf, key(ExceptionField.MESSAGE), message);
                 hasPrevField = true;
             }
 
@@ -445,7 +750,7 @@ public class JsonLayout extends Layout {
                 if (hasPrevField) {
                     buf.append(',');
                 }
-                appendField(buf, ExceptionField.CLASS.val, className);
+                appendField(buf, key(ExceptionField.CLASS), className);
                 hasPrevField = true;
             }
         }
@@ -455,10 +760,19 @@ public class JsonLayout extends Layout {
             if (hasPrevField) {
                 buf.append(',');
             }
-            appendQuotedName(buf, ExceptionField.STACKTRACE.val);
+            buf.append(key(ExceptionField.STACKTRACE));
             buf.append(":\"");
+            long end = (long) buf.length() + valueLimit(buf);
             for (int i = 0, len = stackTrace.length; i < len; i++) {
-                appendValue(buf, stackTrace[i]);
+                int pos = appendValue(buf, stackTrace[i], (int) Math.min(Integer.MAX_VALUE, end - buf.length()));
+                if (pos < stackTrace[i].length()) {
+                    int truncated = stackTrace[i].length() - pos;
+                    for (int j = i + 1; j < len; j++) {
+                        truncated += stackTrace[j].length() + 1;
+                    }
+                    appendTruncatedMarker(buf, truncated);
+                    break;
+                }
                 if (i != len - 1) {
                     appendChar(buf, '\n');
                 }
@@ -499,15 +813,304 @@ public class JsonLayout extends Layout {
                 this.fields.put(field[0], field[1]);
             }
         }
+        if (flattenedMdcKeysVal != null) {
+            flattenedMdcKeys.clear();
+            flattenedMdcKeys.addAll(Arrays.asList(SEP_PATTERN.split(flattenedMdcKeysVal)));
+        }
         if (hostName == null) {
-            try {
-                hostName = InetAddress.getLocalHost().getHostName();
-            } catch (UnknownHostException e) {
-                hostName = "localhost";
-                LogLog.error("Unable to determine name of the localhost", e);
-            }
+            // starts resolving the name in the background
+            LocalHost.getName();
+        }
+        resolveKeys();
+        buf = new StringBuilder(bufferSize);
+        nameCache = nameCacheSize > 0 ? new EscapedStringCache(nameCacheSize) : null;
+        eventFields.clear();
+        eventFields.addAll(renderedFields);
+        if (constantsInHeader) {
+            eventFields.removeAll(EnumSet.of(Field.HOST, Field.PATH, Field.TAGS, Field.VERSION));
         }
         ignoresThrowable = !renderedFields.contains(Field.EXCEPTION);
+        fingerprint = reuseRenderedEvents ? computeFingerprint() : null;
+    }
+
+    /**
+     * Describes everything the rendered event depends on besides the event itself, so that layouts with equal
+     * fingerprints and source paths render an event identically.
+     */
+    private String computeFingerprint() {
+        StringBuilder out = new StringBuilder(getClass().getName());
+        out.append('|').append(eventFields)
+            .append('|').append(Arrays.asList(fieldNames))
+            .append('|').append(Arrays.asList(locationNames))
+            .append('|').append(Arrays.asList(exceptionNames))
+            .append('|').append(new TreeMap<String, String>(mdcKeyAliases))
+            .append('|').append(new TreeSet<String>(flattenedMdcKeys))
+            .append('|').append(constantsInHeader ? Collections.emptyMap() : new TreeMap<String, String>(fields))
+            .append('|').append(tags == null ? null : Arrays.asList(tags))
+            .append('|').append(hostName)
+            .append('|').append(mdcTypedValues)
+            .append('|').append(structuredMessages)
+            .append('|').append(maxFieldLength)
+            .append('|').append(maxEventLength);
+        // interned so that the per-event check is a reference comparison
+        return out.toString().intern();
+    }
+
+    /**
+     * Resolves the names of the rendered fields taking into account {@link #setCompactKeys(boolean) compact keys}
+     * and {@link #setKeyAliases(String) key aliases}, and pre-escapes them. If any name differs from the default one,
+     * the header record maps the used names back to the default ones.
+     */
+    private void resolveKeys() {
+        Map<String, String> aliases = new HashMap<String, String>();
+        if (keyAliasesVal != null) {
+            for (String aliasVal : SEP_PATTERN.split(keyAliasesVal)) {
+                String[] alias = PAIR_SEP_PATTERN.split(aliasVal);
+                aliases.put(alias[0], alias[1]);
+            }
+        }
+
+        Map<String, String> dictionary = new LinkedHashMap<String, String>();
+        for (Field field : Field.values()) {
+            String name = resolveKey(aliases, field.val, field.compactVal);
+            fieldNames[field.ordinal()] = name;
+            fieldKeys[field.ordinal()] = quote(name);
+            addToDictionary(dictionary, name, field.val);
+        }
+
+        String locationName = resolveKey(aliases, Field.LOCATION.val, Field.LOCATION.compactVal);
+        for (LocationField field : LocationField.values()) {
+            String qualifiedName = Field.LOCATION.val + '.' + field.val;
+            String name = resolveKey(aliases, qualifiedName, field.val, field.compactVal);
+            locationNames[field.ordinal()] = name;
+            locationKeys[field.ordinal()] = quote(name);
+            addToDictionary(dictionary, locationName + '.' + name, qualifiedName);
+        }
+
+        String exceptionName = resolveKey(aliases, Field.EXCEPTION.val, Field.EXCEPTION.compactVal);
+        for (ExceptionField field : ExceptionField.values()) {
+            String qualifiedName = Field.EXCEPTION.val + '.' + field.val;
+            String name = resolveKey(aliases, qualifiedName, field.val, field.compactVal);
+            exceptionNames[field.ordinal()] = name;
+            exceptionKeys[field.ordinal()] = quote(name);
+            addToDictionary(dictionary, exceptionName + '.' + name, qualifiedName);
+        }
+
+        String mdcName = resolveKey(aliases, Field.MDC.val, Field.MDC.compactVal);
+        String mdcPrefix = Field.MDC.val + '.';
+        mdcKeyAliases.clear();
+        for (Map.Entry<String, String> alias : aliases.entrySet()) {
+            if (alias.getKey().startsWith(mdcPrefix)) {
+                String key = alias.getKey().substring(mdcPrefix.length());
+                mdcKeyAliases.put(key, alias.getValue());
+                if (flattenedMdcKeys.contains(key)) {
+                    addToDictionary(dictionary, alias.getValue(), key);
+                } else {
+                    addToDictionary(dictionary, mdcName + '.' + alias.getValue(), alias.getKey());
+                }
+            }
+        }
+
+        keysDictionary = dictionary;
+        if (dictionary.isEmpty()) {
+            keysHeader = null;
+        } else {
+            StringBuilder out = new StringBuilder();
+            out.append("\"@keys\":");
+            appendJsonValue(out, dictionary);
+            keysHeader = out.toString();
+        }
+    }
+
+    private String resolveKey(Map<String, String> aliases, String name, String compactName) {
+        return resolveKey(aliases, name, name, compactName);
+    }
+
+    private String resolveKey(Map<String, String> aliases, String qualifiedName, String name, String compactName) {
+        String alias = aliases.get(qualifiedName);
+        if (alias != null) {
+            return alias;
+        }
+        return compactKeys ? compactName : name;
+    }
+
+    private static void addToDictionary(Map<String, String> dictionary, String name, String defaultName) {
+        if (!name.equals(defaultName)) {
+            dictionary.put(name, defaultName);
+        }
+    }
+
+    private static char[] quote(String name) {
+        StringBuilder out = new StringBuilder(name.length() + 2);
+        appendJsonString(out, name);
+        char[] quoted = new char[out.length()];
+        out.getChars(0, out.length(), quoted, 0);
+        return quoted;
+    }
+
+    String name(Field field) {
+        return fieldNames[field.ordinal()];
+    }
+
+    String name(LocationField field) {
+        return locationNames[field.ordinal()];
+    }
+
+    String name(ExceptionField field) {
+        return exceptionNames[field.ordinal()];
+    }
+
+    String mdcKeyName(String key) {
+        if (!mdcKeyAliases.isEmpty()) {
+            String alias = mdcKeyAliases.get(key);
+            if (alias != null) {
+                return alias;
+            }
+        }
+        return key;
+    }
+
+    boolean isRendered(Field field) {
+        return renderedFields.contains(field);
+    }
+
+    Map<String, String> getStaticFields() {
+        return fields;
+    }
+
+    String[] getTags() {
+        return tags;
+    }
+
+    /**
+     * Returns the configured host name, or the name of the local host, which changes once it is resolved.
+     */
+    String getHostName() {
+        return hostName != null ? hostName : LocalHost.getName();
+    }
+
+    Set<String> getFlattenedMdcKeys() {
+        return flattenedMdcKeys;
+    }
+
+    boolean isMdcTypedValues() {
+        return mdcTypedValues;
+    }
+
+    boolean isStructuredMessages() {
+        return structuredMessages;
+    }
+
+    int getMaxFieldLength() {
+        return maxFieldLength;
+    }
+
+    int getMaxEventLength() {
+        return maxEventLength;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    int getMaxRetainedBufferSize() {
+        return maxRetainedBufferSize;
+    }
+
+    String formatTimestamp(long timeStamp) {
+        date.setTime(timeStamp);
+        return dateFormat.format(date);
+    }
+
+    private char[] key(Field field) {
+        return fieldKeys[field.ordinal()];
+    }
+
+    private char[] key(LocationField field) {
+        return locationKeys[field.ordinal()];
+    }
+
+    private char[] key(ExceptionField field) {
+        return exceptionKeys[field.ordinal()];
+    }
+
+    /**
+     * @return the names which differ from the default ones, mapped to the default names
+     */
+    Map<String, String> getKeysDictionary() {
+        return keysDictionary;
+    }
+
+    /**
+     * Returns the record written at the beginning of every file, or {@code null} if it is not needed. The record maps
+     * compacted or aliased field names to the default ones and, if {@link #setConstantsInHeader(boolean) enabled},
+     * holds the fields which are the same for every event of the file.
+     */
+    @Override
+    public String getHeader() {
+        if (keysHeader == null && !constantsInHeader) {
+            return null;
+        }
+
+        StringBuilder out = new StringBuilder(256);
+        out.append('{');
+
+        boolean hasPrevField = false;
+        if (keysHeader != null) {
+            out.append(keysHeader);
+            hasPrevField = true;
+        }
+
+        if (constantsInHeader) {
+            if (!fields.isEmpty()) {
+                if (hasPrevField) {
+                    out.append(',');
+                }
+                hasPrevField = appendFields(out, null);
+            }
+
+            if (renderedFields.contains(Field.HOST)) {
+                if (hasPrevField) {
+                    out.append(',');
+                }
+                appendField(out, key(Field.HOST), getHostName());
+                hasPrevField = true;
+            }
+
+            SourcePath sourcePath = this.sourcePath;
+            if (renderedFields.contains(Field.PATH) && sourcePath != null && sourcePath.path != null) {
+                if (hasPrevField) {
+                    out.append(',');
+                }
+                out.append(key(Field.PATH)).append(':').append(sourcePath.quoted);
+                hasPrevField = true;
+            }
+
+            if (renderedFields.contains(Field.TAGS) && tags != null && tags.length != 0) {
+                if (hasPrevField) {
+                    out.append(',');
+                }
+                hasPrevField = appendTags(out, null);
+            }
+
+            if (renderedFields.contains(Field.VERSION)) {
+                if (hasPrevField) {
+                    out.append(',');
+                }
+                appendField(out, key(Field.VERSION), VERSION);
+            }
+        }
+
+        out.append("}\n");
+        return out.toString();
+    }
+
+    /**
+     * Notifies the layout that its appender has opened the given file, on activation and on every rollover, so that
+     * events log the file they are written to without looking the appender up.
+     */
+    void fileOpened(String fileName) {
+        sourcePath = newSourcePath(getPath(fileName));
     }
 
     @Override
@@ -527,7 +1130,77 @@ public class JsonLayout extends Layout {
         out.append('\"');
     }
 
-    private void appendValue(StringBuilder out, String val) {
+    /**
+     * Appends the given string to the buffer as a quoted and escaped JSON string.
+     */
+    public static void appendJsonString(StringBuilder out, String val) {
+        out.append('\"');
+        appendValue(out, val);
+        out.append('\"');
+    }
+
+    /**
+     * Appends the given object to the buffer as a JSON value: maps are rendered as objects, collections and arrays
+     * as arrays, numbers and booleans as literals, {@link JsonRenderable} objects render themselves and anything else
+     * is rendered as the string returned by its {@code toString()}.
+     */
+    public static void appendJsonValue(StringBuilder out, Object val) {
+        appendJsonValue(out, val, 0);
+    }
+
+    private static void appendJsonValue(StringBuilder out, Object val, int depth) {
+        if (val == null) {
+            out.append("null");
+        } else if (val instanceof String) {
+            appendJsonString(out, (String) val);
+        } else if (val instanceof Number || val instanceof Boolean) {
+            if (!appendLiteral(out, val)) {
+                appendJsonString(out, val.toString());
+            }
+        } else if (depth >= MAX_STRUCTURED_DEPTH) {
+            appendJsonString(out, "...");
+        } else if (val instanceof JsonRenderable) {
+            ((JsonRenderable) val).appendJson(out);
+        } else if (val instanceof Map) {
+            out.append('{');
+            boolean hasPrevField = false;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) val).entrySet()) {
+                if (hasPrevField) {
+                    out.append(',');
+                }
+                appendJsonString(out, String.valueOf(entry.getKey()));
+                out.append(':');
+                appendJsonValue(out, entry.getValue(), depth + 1);
+                hasPrevField = true;
+            }
+            out.append('}');
+        } else if (val instanceof Collection) {
+            out.append('[');
+            boolean hasPrevItem = false;
+            for (Object item : (Collection<?>) val) {
+                if (hasPrevItem) {
+                    out.append(',');
+                }
+                appendJsonValue(out, item, depth + 1);
+                hasPrevItem = true;
+            }
+            out.append(']');
+        } else if (val instanceof Object[]) {
+            Object[] items = (Object[]) val;
+            out.append('[');
+            for (int i = 0, len = items.length; i < len; i++) {
+                if (i != 0) {
+                    out.append(',');
+                }
+                appendJsonValue(out, items[i], depth + 1);
+            }
+            out.append(']');
+        } else {
+            appendJsonString(out, val.toString());
+        }
+    }
+
+    static void appendValue(StringBuilder out, String val) {
         for (int i = 0, len = val.length(); i < len; i++) {
             appendChar(out, val.charAt(i));
         }
@@ -539,7 +1212,90 @@ public class JsonLayout extends Layout {
         appendQuotedValue(out, val);
     }
 
-    private void appendChar(StringBuilder out, char ch) {
+    private void appendField(StringBuilder out, char[] name, Object val) {
+        out.append(name);
+        out.append(':');
+        appendQuotedValue(out, val);
+    }
+
+    private void appendLimitedField(StringBuilder out, char[] name, String val) {
+        out.append(name);
+        out.append(':');
+        appendLimitedValue(out, val);
+    }
+
+    private void appendLimitedValue(StringBuilder out, String val) {
+        out.append('\"');
+        if (val == null) {
+            out.append("null");
+        } else {
+            int pos = appendValue(out, val, valueLimit(out));
+            if (pos < val.length()) {
+                appendTruncatedMarker(out, val.length() - pos);
+            }
+        }
+        out.append('\"');
+    }
+
+    /**
+     * Returns the maximum number of escaped characters a variable-size value may occupy given the configured
+     * field and event length limits.
+     */
+    private int valueLimit(StringBuilder out) {
+        int limit = maxFieldLength > 0 ? maxFieldLength : Integer.MAX_VALUE;
+        if (maxEventLength > 0) {
+            limit = Math.min(limit, Math.max(0, maxEventLength - (out.length() - eventStart)));
+        }
+        return limit;
+    }
+
+    /**
+     * Appends the escaped value until it occupies {@code limit} characters of the buffer.
+     *
+     * @return the number of characters of the value which were appended
+     */
+    private static int appendValue(StringBuilder out, String val, int limit) {
+        int len = val.length();
+        if (limit >= (long) len * 6) {
+            // even if every character is escaped it fits
+            appendValue(out, val);
+            return len;
+        }
+
+        long end = (long) out.length() + limit;
+        for (int i = 0; i < len; i++) {
+            char ch = val.charAt(i);
+            int mark = out.length();
+            appendChar(out, ch);
+            if (out.length() > end) {
+                out.setLength(mark);
+                if (i > 0 && Character.isHighSurrogate(val.charAt(i - 1))) {
+                    // do not split a surrogate pair
+                    out.setLength(mark - 1);
+                    return i - 1;
+                }
+                return i;
+            }
+        }
+        return len;
+    }
+
+    private static void appendTruncatedMarker(StringBuilder out, int truncated) {
+        out.append(TRUNCATED_MARKER).append(truncated).append(" chars]");
+    }
+
+    private void appendCachedField(StringBuilder out, char[] name, String val) {
+        if (nameCache == null) {
+            appendField(out, name, val);
+            return;
+        }
+        out.append(name);
+        out.append(":\"");
+        nameCache.append(out, String.valueOf(val));
+        out.append('\"');
+    }
+
+    static void appendChar(StringBuilder out, char ch) {
         switch (ch) {
             case '"':
                 out.append("\\\"");
@@ -598,4 +1354,160 @@ public class JsonLayout extends Layout {
     public void setHostName(String hostName) {
         this.hostName = hostName;
     }
+
+    /**
+     * Sets the maximum number of characters the escaped message, NDC, MDC value, exception message or
+     * stack trace may occupy; longer values are truncated and end with a truncation marker. {@code 0} means no limit.
+     */
+    public void setMaxFieldLength(int maxFieldLength) {
+        this.maxFieldLength = maxFieldLength;
+    }
+
+    /**
+     * Sets the length in characters after which variable-size values of an event are truncated. Fields of a fixed
+     * size (timestamp, level, host, etc.) are always rendered, so an event may exceed this limit by their length.
+     * {@code 0} means no limit.
+     */
+    public void setMaxEventLength(int maxEventLength) {
+        this.maxEventLength = maxEventLength;
+    }
+
+    /**
+     * Sets the initial capacity in characters of the render buffer.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets the capacity in characters above which the render buffer is released after formatting an event,
+     * so that a single oversized event does not pin its memory for the lifetime of the layout.
+     */
+    public void setMaxRetainedBufferSize(int maxRetainedBufferSize) {
+        this.maxRetainedBufferSize = maxRetainedBufferSize;
+    }
+
+    /**
+     * Sets whether the standard fields are rendered with short names, e.g. {@code t} instead of {@code @timestamp}.
+     * The header record written at the beginning of every file maps the short names back to the default ones.
+     */
+    public void setCompactKeys(boolean compactKeys) {
+        this.compactKeys = compactKeys;
+    }
+
+    /**
+     * Sets the comma separated list of {@code name:alias} pairs renaming the standard fields. Nested fields are
+     * referenced by qualified names like {@code exception.stacktrace}, and MDC keys like {@code mdc.trace_id}.
+     */
+    public void setKeyAliases(String keyAliases) {
+        this.keyAliasesVal = keyAliases;
+    }
+
+    /**
+     * Sets whether the configured fields, tags, host, path and version, which are the same for every event, are logged
+     * once in the header record at the beginning of every file instead of being repeated in every event.
+     */
+    public void setConstantsInHeader(boolean constantsInHeader) {
+        this.constantsInHeader = constantsInHeader;
+    }
+
+    /**
+     * Sets whether {@link Map} and {@link JsonRenderable} messages are rendered as nested JSON
+     * instead of the string returned by their {@code toString()}.
+     */
+    public void setStructuredMessages(boolean structuredMessages) {
+        this.structuredMessages = structuredMessages;
+    }
+
+    /**
+     * Sets whether numeric and boolean MDC values are rendered as JSON literals instead of strings.
+     */
+    public void setMdcTypedValues(boolean mdcTypedValues) {
+        this.mdcTypedValues = mdcTypedValues;
+    }
+
+    /**
+     * Sets the comma separated list of MDC keys which are rendered as top-level fields instead of
+     * being nested into the {@code mdc} object.
+     */
+    public void setFlattenedMdcKeys(String flattenedMdcKeys) {
+        this.flattenedMdcKeysVal = flattenedMdcKeys;
+    }
+
+    /**
+     * Sets the number of slots of the cache holding escaped logger and thread names; {@code 0} disables the cache.
+     */
+    public void setNameCacheSize(int nameCacheSize) {
+        this.nameCacheSize = nameCacheSize;
+    }
+
+    /**
+     * Sets whether an event already rendered on the current thread by another layout with the same configuration,
+     * e.g. attached to another appender of the same logger, is reused instead of being rendered again. Events are
+     * matched by identity, so a {@link LoggingEvent} must not be modified after it was first appended.
+     */
+    public void setReuseRenderedEvents(boolean reuseRenderedEvents) {
+        this.reuseRenderedEvents = reuseRenderedEvents;
+    }
+
+    /**
+     * Sets that the formatting time of every n-th event is recorded in {@link #getFormatLatency()},
+     * {@code 1} by default; {@code 0} disables timing.
+     */
+    public void setLatencySampling(int latencySampling) {
+        formatLatency.setSampling(latencySampling);
+    }
+
+    /**
+     * Returns the histogram of the time spent formatting events.
+     */
+    public LatencyHistogram getFormatLatency() {
+        return formatLatency;
+    }
+
+    /**
+     * Copies the options of this layout to another one, which still has to be activated.
+     */
+    void copyOptionsTo(JsonLayout layout) {
+        layout.tagsVal = tagsVal;
+        layout.fieldsVal = fieldsVal;
+        layout.includedFields = includedFields;
+        layout.excludedFields = excludedFields;
+        layout.flattenedMdcKeysVal = flattenedMdcKeysVal;
+        layout.keyAliasesVal = keyAliasesVal;
+        layout.compactKeys = compactKeys;
+        layout.constantsInHeader = constantsInHeader;
+        layout.nameCacheSize = nameCacheSize;
+        layout.mdcTypedValues = mdcTypedValues;
+        layout.structuredMessages = structuredMessages;
+        layout.maxFieldLength = maxFieldLength;
+        layout.maxEventLength = maxEventLength;
+        layout.bufferSize = bufferSize;
+        layout.maxRetainedBufferSize = maxRetainedBufferSize;
+        layout.reuseRenderedEvents = reuseRenderedEvents;
+        layout.hostName = hostName;
+        layout.formatLatency.setSampling(formatLatency.getSampling());
+    }
+
+    LayoutMetrics getMetrics() {
+        return metrics;
+    }
+
+    int getBufferCapacity() {
+        return buf.capacity();
+    }
+
+    /**
+     * Returns the number of logger and thread names served from the escaped name cache.
+     */
+    public long getNameCacheHits() {
+        return nameCache != null ? nameCache.getHits() : 0;
+    }
+
+    /**
+     * Returns the number of logger and thread names which had to be escaped because they were not cached.
+     */
+    public long getNameCacheMisses() {
+        return nameCache != null ? nameCache.getMisses() : 0;
+    }
 }
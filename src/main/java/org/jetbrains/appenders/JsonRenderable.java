@@ -0,0 +1,27 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+/**
+ * A message object which writes itself into the {@link JsonLayout} buffer as a JSON value
+ * instead of being logged as the escaped result of its {@code toString()}.
+ * <p/>
+ * Implementations must append exactly one complete JSON value (an object, an array, a string, a number or
+ * a literal). Strings and nested values can be appended with {@link JsonLayout#appendJsonString(StringBuilder, String)}
+ * and {@link JsonLayout#appendJsonValue(StringBuilder, Object)}.
+ */
+public interface JsonRenderable {
+
+    void appendJson(StringBuilder out);
+}
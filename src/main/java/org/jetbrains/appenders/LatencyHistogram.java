@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with log-scaled buckets.
+ * <p/>
+ * Durations below 16ns have a bucket each; above, every power of two is split into 8 buckets, so a percentile is
+ * within 12.5% of the recorded value. The buckets are allocated once, recording is an atomic increment without
+ * allocation or locks. Percentiles are computed when read and are not an atomic snapshot of concurrent recording.
+ * <p/>
+ * Only every {@link #setSampling(int) sampling}-th operation is timed, to bound the cost of reading the clock.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2;
+    private static final int BUCKETS = LINEAR_BUCKETS + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+    private volatile int sampling = 1;
+    private int skipped;
+
+    /**
+     * Sets the number of operations per timed operation, 1 times every operation and 0 disables timing.
+     */
+    public void setSampling(int sampling) {
+        this.sampling = sampling;
+    }
+
+    public int getSampling() {
+        return sampling;
+    }
+
+    /**
+     * Returns the start time of an operation to pass to {@link #stop(long)}, if the operation is sampled.
+     * Callers are expected to be serialized, e.g. by the lock of an appender; otherwise the sampling rate is
+     * approximate.
+     */
+    long start() {
+        int sampling = this.sampling;
+        if (sampling <= 0 || ++skipped < sampling) {
+            return NOT_SAMPLED;
+        }
+        skipped = 0;
+        return System.nanoTime();
+    }
+
+    void stop(long start) {
+        if (start != NOT_SAMPLED) {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // retry until the maximum is at least the duration
+        }
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < LINEAR_BUCKETS) {
+            return (int) nanos;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = msb - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the largest duration which falls into the bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long top = SUB_BUCKETS + (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the duration in nanoseconds which the given fraction, e.g. 0.99, of the timed operations did not
+     * exceed, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Returns the longest duration recorded in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(getPercentile(0.5));
+    }
+
+    public long getP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(getPercentile(0.99));
+    }
+
+    public long getP999Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(getPercentile(0.999));
+    }
+
+    public long getMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(getMax());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+/**
+ * Counters of a {@link JsonLayout}, cheap enough to be updated on every event.
+ */
+public class LayoutMetrics implements LayoutMetricsMBean {
+
+    private final JsonLayout layout;
+    private final StripedCounter eventsFormatted = new StripedCounter();
+    private final StripedCounter eventsReused = new StripedCounter();
+    private final StripedCounter formattingErrors = new StripedCounter();
+
+    LayoutMetrics(JsonLayout layout) {
+        this.layout = layout;
+    }
+
+    void eventFormatted() {
+        eventsFormatted.increment();
+    }
+
+    void eventReused() {
+        eventsReused.increment();
+    }
+
+    void formattingError() {
+        formattingErrors.increment();
+    }
+
+    public long getEventsFormatted() {
+        return eventsFormatted.sum();
+    }
+
+    public long getEventsReused() {
+        return eventsReused.sum();
+    }
+
+    public long getFormattingErrors() {
+        return formattingErrors.sum();
+    }
+
+    public long getNameCacheHits() {
+        return layout.getNameCacheHits();
+    }
+
+    public long getNameCacheMisses() {
+        return layout.getNameCacheMisses();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+/**
+ * Statistics of a {@link JsonLayout}, registered by the {@link NextRollingFileAppender} using the layout.
+ */
+public interface LayoutMetricsMBean {
+
+    /**
+     * Returns the number of events rendered by the layout.
+     */
+    long getEventsFormatted();
+
+    /**
+     * Returns the number of events whose output was reused from another layout with the same configuration.
+     */
+    long getEventsReused();
+
+    /**
+     * Returns the number of errors reported while formatting events, e.g. failed structured messages.
+     */
+    long getFormattingErrors();
+
+    long getNameCacheHits();
+
+    long getNameCacheMisses();
+}
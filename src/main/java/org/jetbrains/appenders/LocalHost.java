@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.apache.log4j.helpers.LogLog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Name of the local host, shared by all layouts of the JVM.
+ * <p/>
+ * Resolving the name with {@link InetAddress#getLocalHost()} may take seconds when DNS is misconfigured, so the name
+ * is first taken from the {@code HOSTNAME} environment variable or {@code /proc/sys/kernel/hostname}, and resolved
+ * once per JVM on a background thread. Layouts read the name for every event and pick up the resolved name as soon
+ * as it is available.
+ */
+class LocalHost {
+
+    private static final String KERNEL_HOSTNAME = "/proc/sys/kernel/hostname";
+
+    private static final AtomicBoolean resolving = new AtomicBoolean();
+    private static final CountDownLatch resolved = new CountDownLatch(1);
+    private static volatile String name = initialName();
+
+    private LocalHost() {
+    }
+
+    /**
+     * Returns the best name known, and starts resolving it on the first call.
+     */
+    static String getName() {
+        if (!resolving.get() && resolving.compareAndSet(false, true)) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    resolve();
+                }
+            }, "JsonLayout host name resolver");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return name;
+    }
+
+    /**
+     * Waits until the name is resolved, returns whether it was within the timeout.
+     */
+    static boolean awaitResolved(long timeout, TimeUnit unit) throws InterruptedException {
+        getName();
+        return resolved.await(timeout, unit);
+    }
+
+    private static void resolve() {
+        try {
+            name = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            LogLog.warn("Unable to determine name of the localhost, using " + name, e);
+        } catch (RuntimeException e) {
+            LogLog.warn("Unable to determine name of the localhost, using " + name, e);
+        } finally {
+            resolved.countDown();
+        }
+    }
+
+    private static String initialName() {
+        String env = null;
+        try {
+            env = System.getenv("HOSTNAME");
+        } catch (SecurityException ignored) {
+            // fall back to the kernel
+        }
+        if (env != null && env.trim().length() != 0) {
+            return env.trim();
+        }
+
+        File kernel = new File(KERNEL_HOSTNAME);
+        if (kernel.isFile()) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(kernel), "US-ASCII"));
+                try {
+                    String line = reader.readLine();
+                    if (line != null && line.trim().length() != 0) {
+                        return line.trim();
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException ignored) {
+                // fall back to the default
+            } catch (SecurityException ignored) {
+                // fall back to the default
+            }
+        }
+        return "localhost";
+    }
+}
@@ -0,0 +1,170 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link FileAppender} which guards appending, opening and closing files
+ * with a {@link ReentrantLock} instead of the monitor of the appender.
+ *
+ * A thread blocked on file I/O while holding a monitor pins the carrier
+ * of a virtual thread, while a thread holding a lock does not.
+ * The lock is available on any JVM supported by log4j, so the appender
+ * is configured as any other file appender.
+ *
+ * Note that log4j's <code>Category.callAppenders</code> still holds the
+ * monitor of each logger while calling its appenders, so an event logged
+ * through a {@link org.apache.log4j.Logger} pins the carrier anyway. The
+ * lock only keeps it free for direct calls of {@link #doAppend} and for
+ * threads waiting behind an event of another logger the appender is
+ * attached to.
+ */
+public class LockingFileAppender extends FileAppender {
+  /**
+   * Guards the file and the layout of the appender.
+   */
+  protected final ReentrantLock lock = new ReentrantLock();
+
+  public LockingFileAppender() {
+    super();
+  }
+
+  /**
+   * Opens the file designated by <code>filename</code>, the file is truncated unless
+   * <code>append</code> is true.
+   */
+  public LockingFileAppender(Layout layout, String filename, boolean append) throws IOException {
+    // the file is opened here rather than by the super constructor, which runs before the lock is created
+    this.layout = layout;
+    setFile(filename, append, false, bufferSize);
+  }
+
+  /**
+   * Opens the file designated by <code>filename</code> for appending.
+   */
+  public LockingFileAppender(Layout layout, String filename) throws IOException {
+    this(layout, filename, true);
+  }
+
+  public void doAppend(LoggingEvent event) {
+    lock.lock();
+    try {
+      if (closed) {
+        LogLog.error("Attempted to append to closed appender named [" + name + "].");
+        return;
+      }
+
+      if (!isAsSevereAsThreshold(event.getLevel())) {
+        return;
+      }
+
+      Filter f = getFirstFilter();
+      FILTER_LOOP:
+      while (f != null) {
+        switch (f.decide(event)) {
+          case Filter.DENY:
+            return;
+          case Filter.ACCEPT:
+            break FILTER_LOOP;
+          case Filter.NEUTRAL:
+            f = f.getNext();
+        }
+      }
+
+      append(event);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Opens the file as {@link FileAppender#setFile(String, boolean, boolean, int)} does,
+   * holding the lock instead of the monitor of the appender.
+   */
+  public void setFile(String fileName, boolean append, boolean bufferedIO, int bufferSize) throws IOException {
+    lock.lock();
+    try {
+      LogLog.debug("setFile called: " + fileName + ", " + append);
+
+      // It does not make sense to have immediate flush and bufferedIO.
+      if (bufferedIO) {
+        setImmediateFlush(false);
+      }
+
+      reset();
+      FileOutputStream ostream;
+      try {
+        ostream = new FileOutputStream(fileName, append);
+      } catch (FileNotFoundException ex) {
+        // if parent directory does not exist then attempt to create it and try to create file
+        final String parentName = new File(fileName).getParent();
+        if (parentName == null) throw ex;
+
+        final File parentDir = new File(parentName);
+        if (parentDir.exists() || !parentDir.mkdirs()) throw ex;
+
+        ostream = new FileOutputStream(fileName, append);
+      }
+
+      Writer fw = createWriter(ostream);
+      if (bufferedIO) {
+        fw = new BufferedWriter(fw, bufferSize);
+      }
+      setQWForFiles(fw);
+      this.fileName = fileName;
+      this.fileAppend = append;
+      this.bufferedIO = bufferedIO;
+      this.bufferSize = bufferSize;
+      if (layout instanceof JsonLayout) {
+        // before the header, which may hold the path of the file
+        ((JsonLayout) layout).fileOpened(fileName);
+      }
+      writeHeader();
+      LogLog.debug("setFile ended");
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void setLayout(Layout layout) {
+    lock.lock();
+    try {
+      super.setLayout(layout);
+      if (qw != null && layout instanceof JsonLayout) {
+        ((JsonLayout) layout).fileOpened(fileName);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return an estimate of the number of threads waiting to append
+   */
+  public int getQueueLength() {
+    return lock.getQueueLength();
+  }
+
+  public void close() {
+    lock.lock();
+    try {
+      if (closed) return;
+      closed = true;
+      writeFooter();
+      reset();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
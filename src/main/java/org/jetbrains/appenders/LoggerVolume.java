@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Number of events and their size written per logger name. The size is counted as for the maximum file size of the
+ * appender: in bytes for binary layouts and in characters for text layouts, see {@link #getUnit()}.
+ * <p/>
+ * Each logger name gets a slot on its first event, up to a fixed number of names; the events of the names beyond it
+ * are counted in the {@link #OTHER} slot. Every slot has a counter per stripe of threads, and a thread only updates
+ * the counters of its stripe, so threads logging at the same time do not contend on the same counter. Totals are
+ * summed when read.
+ */
+public class LoggerVolume {
+
+    /**
+     * The name under which the events of the loggers beyond the capacity are counted.
+     */
+    public static final String OTHER = "other";
+
+    private final int capacity;
+    private final int mask;
+    private final ConcurrentMap<String, Integer> slots = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private final AtomicReferenceArray<String> names;
+    private final AtomicLongArray[] events;
+    private final AtomicLongArray[] sizes;
+    private final String unit;
+
+    LoggerVolume(int capacity, String unit) {
+        this.capacity = capacity;
+        this.unit = unit;
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        mask = stripes - 1;
+        names = new AtomicReferenceArray<String>(capacity + 1);
+        names.set(capacity, OTHER);
+        events = new AtomicLongArray[stripes];
+        sizes = new AtomicLongArray[stripes];
+        for (int i = 0; i < stripes; i++) {
+            events[i] = new AtomicLongArray(capacity + 1);
+            sizes[i] = new AtomicLongArray(capacity + 1);
+        }
+    }
+
+    void record(String loggerName, long size) {
+        int slot = slot(loggerName);
+        int stripe = (int) Thread.currentThread().getId() & mask;
+        events[stripe].incrementAndGet(slot);
+        sizes[stripe].addAndGet(slot, size);
+    }
+
+    private int slot(String loggerName) {
+        if (loggerName == null) {
+            return capacity;
+        }
+        Integer slot = slots.get(loggerName);
+        if (slot != null) {
+            return slot;
+        }
+        if (nextSlot.get() >= capacity) {
+            return capacity;
+        }
+        int next = nextSlot.getAndIncrement();
+        if (next >= capacity) {
+            return capacity;
+        }
+        slot = slots.putIfAbsent(loggerName, next);
+        if (slot != null) {
+            // another thread took a slot for the name first, the slot taken here stays unused
+            return slot;
+        }
+        names.set(next, loggerName);
+        return next;
+    }
+
+    /**
+     * Returns the unit of the sizes, {@code "bytes"} or {@code "chars"}.
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * Returns the loggers which wrote the most, at most {@code count} of them.
+     */
+    public List<Entry> top(int count) {
+        return top(snapshot(), count);
+    }
+
+    /**
+     * Returns the number of events and the size of every slot, to compute the volume of an interval with
+     * {@link #top(long[][], long[][], int)}.
+     */
+    long[][] snapshot() {
+        long[][] snapshot = new long[2][capacity + 1];
+        for (int stripe = 0; stripe < events.length; stripe++) {
+            for (int slot = 0; slot <= capacity; slot++) {
+                snapshot[0][slot] += events[stripe].get(slot);
+                snapshot[1][slot] += sizes[stripe].get(slot);
+            }
+        }
+        return snapshot;
+    }
+
+    List<Entry> top(long[][] snapshot, int count) {
+        return top(snapshot, null, count);
+    }
+
+    /**
+     * Returns the loggers which wrote the most between two snapshots.
+     */
+    List<Entry> top(long[][] snapshot, long[][] previous, int count) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (int slot = 0; slot <= capacity; slot++) {
+            String name = names.get(slot);
+            long slotEvents = snapshot[0][slot] - (previous == null ? 0 : previous[0][slot]);
+            if (name != null && slotEvents > 0) {
+                long slotSize = snapshot[1][slot] - (previous == null ? 0 : previous[1][slot]);
+                entries.add(new Entry(name, slotEvents, slotSize, unit));
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry o1, Entry o2) {
+                return o1.size < o2.size ? 1 : (o1.size == o2.size ? 0 : -1);
+            }
+        });
+        return entries.size() > count ? entries.subList(0, count) : entries;
+    }
+
+    public static class Entry {
+        private final String logger;
+        private final long events;
+        private final long size;
+        private final String unit;
+
+        Entry(String logger, long events, long size, String unit) {
+            this.logger = logger;
+            this.events = events;
+            this.size = size;
+            this.unit = unit;
+        }
+
+        public String getLogger() {
+            return logger;
+        }
+
+        public long getEvents() {
+            return events;
+        }
+
+        /**
+         * Returns the size of the events as counted for the maximum file size of the appender, in {@link #getUnit()}.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns {@code "bytes"} for binary layouts and {@code "chars"} for text layouts.
+         */
+        public String getUnit() {
+            return unit;
+        }
+
+        @Override
+        public String toString() {
+            return logger + ": " + events + " events, " + size + " " + unit;
+        }
+    }
+}
@@ -2,16 +2,30 @@ package org.jetbrains.appenders;
 
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
 import org.apache.log4j.helpers.CountingQuietWriter;
 import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * @author Eugene Petrenko (eugene.petrenko@gmail.com)
@@ -33,7 +47,7 @@ import java.util.*;
  *  This will be resolved eventually
  *
  */
-public class NextRollingFileAppender extends FileAppender {
+public class NextRollingFileAppender extends LockingFileAppender {
   /**
    * The default maximum file size is 10MB.
    */
@@ -56,6 +70,119 @@ public class NextRollingFileAppender extends FileAppender {
     this.fileExtension = fileExtension;
   }
 
+  private static final int MAX_RETAINED_RECORD_SIZE = 32 * 1024;
+  private static final int MAX_COMBINED_EVENTS = 256;
+  private static final int VOLUME_SUMMARY_LOGGERS = 10;
+  private static final Logger VOLUME_LOGGER = Logger.getLogger(LoggerVolume.class);
+
+  private boolean lengthPrefixed = false;
+
+  private boolean combineWrites = false;
+
+  private boolean jmx;
+
+  private int loggerVolumeSize = 0;
+
+  private long loggerVolumeInterval = TimeUnit.SECONDS.toMillis(60);
+
+  public boolean isCombineWrites() {
+    return combineWrites;
+  }
+
+  /**
+   * When many threads log at the same time, the thread which holds the lock of
+   * the appender also writes the events of the waiting threads and flushes
+   * the file once for all of them. The waiting threads return as soon as their
+   * events are written and flushed according to {@link #setImmediateFlush(boolean)}.
+   * No background thread is involved and no event is dropped.
+   * <p/>
+   * <code>Category.callAppenders</code> holds the monitor of the logger the
+   * appender is attached to while it appends, so events logged through the
+   * loggers below it reach the appender one at a time; writes are combined
+   * when the appender is attached to several loggers or called by other
+   * appenders from several threads.
+   */
+  public void setCombineWrites(boolean combineWrites) {
+    this.combineWrites = combineWrites;
+  }
+
+  public boolean isJmx() {
+    return jmx;
+  }
+
+  /**
+   * Registers the {@link AppenderMetricsMBean statistics} of the appender, and of its layout when it is
+   * a {@link JsonLayout}, in the platform MBean server as
+   * <code>org.jetbrains.appenders:type=NextRollingFileAppender,name=&lt;appender name&gt;</code>.
+   * The statistics are not registered while another appender, e.g. of another web application,
+   * holds the name. Disabled by default.
+   */
+  public void setJmx(boolean jmx) {
+    this.jmx = jmx;
+  }
+
+  /**
+   * Sets that the append time of every n-th event, including formatting, writing and rolling
+   * over, is recorded in {@link #getAppendLatency()}. 1 by default, 0 disables timing.
+   * Rollovers are always timed in {@link #getRolloverLatency()}.
+   */
+  public void setLatencySampling(int latencySampling) {
+    myAppendLatency.setSampling(latencySampling);
+  }
+
+  public LatencyHistogram getAppendLatency() {
+    return myAppendLatency;
+  }
+
+  public LatencyHistogram getRolloverLatency() {
+    return myRolloverLatency;
+  }
+
+  public int getLoggerVolumeSize() {
+    return loggerVolumeSize;
+  }
+
+  /**
+   * Counts the events and their size written per logger name, in bytes for binary layouts
+   * and in characters for text layouts, for up to the given number of
+   * names; the names beyond it are counted together as {@link LoggerVolume#OTHER}.
+   * 0, the default, disables counting.
+   */
+  public void setLoggerVolumeSize(int loggerVolumeSize) {
+    this.loggerVolumeSize = loggerVolumeSize;
+  }
+
+  /**
+   * Sets the interval in seconds of the events with the loggers which wrote the most
+   * during the interval, 60 by default; 0 disables the events.
+   */
+  public void setLoggerVolumeInterval(int seconds) {
+    this.loggerVolumeInterval = TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  /**
+   * Returns the volume written per logger, or <code>null</code> unless
+   * {@link #setLoggerVolumeSize(int) loggerVolumeSize} is set.
+   */
+  public LoggerVolume getLoggerVolume() {
+    return myLoggerVolume;
+  }
+
+  public boolean isLengthPrefixed() {
+    return lengthPrefixed;
+  }
+
+  /**
+   * Precedes every record, including the header and the footer of the layout,
+   * with the length of the record in bytes, so that a reader can skip records
+   * without parsing them. The record itself is written unchanged.
+   * The format and the recovery rule for an incomplete last record are
+   * described in {@link FramedRecordReader}.
+   */
+  public void setLengthPrefixed(boolean lengthPrefixed) {
+    this.lengthPrefixed = lengthPrefixed;
+  }
+
   /**
    * The default constructor simply calls its {@link
    * FileAppender#FileAppender parents constructor}.
@@ -107,11 +234,32 @@ public class NextRollingFileAppender extends FileAppender {
 
   private String realFileName = null;
   private int myCurrentFileId = 1;
-  private final Set<File> myPendingFiles = new HashSet<File>();
+  /**
+   * In the order the files were found or written, which breaks ties of the
+   * modification times, as they may have a resolution of a second.
+   */
+  private final Set<File> myPendingFiles = new LinkedHashSet<File>();
   private File myWritingFile = null;
+  private OutputStream myStream = null;
+  private ByteArrayOutputStream myRecord = new ByteArrayOutputStream();
+  private final StringBuilder myText = new StringBuilder();
+  private final Queue<PendingEvent> myPendingEvents = new ConcurrentLinkedQueue<PendingEvent>();
+  private final List<PendingEvent> myBatch = new ArrayList<PendingEvent>();
+  private boolean myCombining = false;
+  private boolean myFlushPending = false;
+  private final AppenderMetrics myMetrics = new AppenderMetrics(this);
+  private final LatencyHistogram myAppendLatency = new LatencyHistogram();
+  private final LatencyHistogram myRolloverLatency = new LatencyHistogram();
+  private volatile LoggerVolume myLoggerVolume = null;
+  private long[][] myLastVolume = null;
+  private long myNextVolumeSummary = Long.MAX_VALUE;
+  private final List<ObjectName> myMBeanNames = new ArrayList<ObjectName>();
 
   public // synchronization not necessary since doAppend is already synced
   void rollOver() {
+    final long start = System.nanoTime();
+    final Object jfrEvent = FlightRecorderEvents.INSTANCE.beginRollover();
+    int filesDeleted = 0;
     if (qw != null) {
       long size = ((CountingQuietWriter) qw).getCount();
       LogLog.debug("rolling over count=" + size);
@@ -130,6 +278,7 @@ public class NextRollingFileAppender extends FileAppender {
     ///clean all pending files
     {
       final LinkedList<File> existingFiles = new LinkedList<File>(myPendingFiles);
+      // the sort is stable, files modified within the same tick stay in the order they were written
       Collections.sort(existingFiles, new Comparator<File>() {
         public int compare(File o1, File o2) {
           final long t1 = o1.lastModified();
@@ -142,8 +291,10 @@ public class NextRollingFileAppender extends FileAppender {
         final File file = existingFiles.removeFirst();
         myPendingFiles.remove(file);
 
-        //noinspection ResultOfMethodCallIgnored
-        file.delete();
+        if (file.delete()) {
+          myMetrics.fileDeleted();
+          filesDeleted++;
+        }
       }
     }
 
@@ -167,6 +318,10 @@ public class NextRollingFileAppender extends FileAppender {
         myWritingFile = nextLogFile;
         if (prevFile != null) {
           myPendingFiles.add(prevFile);
+          final long duration = System.nanoTime() - start;
+          myMetrics.rolledOver(duration);
+          myRolloverLatency.record(duration);
+          FlightRecorderEvents.INSTANCE.endRollover(jfrEvent, name, prevFile.getPath(), nextLogFile.getPath(), filesDeleted);
         }
 
         break;
@@ -188,10 +343,118 @@ public class NextRollingFileAppender extends FileAppender {
 
   }
 
-  public
-  synchronized void setFile(String fileName, boolean append, boolean bufferedIO, int bufferSize) throws IOException {
-    realFileName = null;
-    rollOver();
+  public void setFile(String fileName, boolean append, boolean bufferedIO, int bufferSize) throws IOException {
+    lock.lock();
+    try {
+      realFileName = null;
+      rollOver();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void activateOptions() {
+    lock.lock();
+    try {
+      // sizes are counted as for maxFileSize, the characters of a text layout are not encoded again
+      myLoggerVolume = loggerVolumeSize > 0
+              ? new LoggerVolume(loggerVolumeSize, layout instanceof BinaryLayout ? "bytes" : "chars") : null;
+      myLastVolume = null;
+      myNextVolumeSummary = myLoggerVolume != null && loggerVolumeInterval > 0
+              ? System.currentTimeMillis() + loggerVolumeInterval : Long.MAX_VALUE;
+    } finally {
+      lock.unlock();
+    }
+    super.activateOptions();
+    if (jmx) {
+      registerMBeans();
+    }
+  }
+
+  public void close() {
+    super.close();
+    unregisterMBeans();
+  }
+
+  AppenderMetrics getMetrics() {
+    return myMetrics;
+  }
+
+  File getWritingFile() {
+    return myWritingFile;
+  }
+
+  int getCurrentFileId() {
+    return myCurrentFileId;
+  }
+
+  long getCurrentFileSize() {
+    final Writer writer = qw;
+    return writer instanceof CountingQuietWriter ? ((CountingQuietWriter) writer).getCount() : 0;
+  }
+
+  private void registerMBeans() {
+    unregisterMBeans();
+    final String id = name != null ? name : fileName;
+    if (id == null) return;
+
+    final String suffix = ",name=" + ObjectName.quote(id);
+    final String type = "org.jetbrains.appenders:type=" + getClass().getSimpleName() + suffix;
+    if (isRegistered(type)) {
+      LogLog.warn("MBean " + type + " is registered by another appender, the statistics of appender ["
+              + name + "] are not registered");
+      return;
+    }
+    registerMBean(type, myMetrics);
+    registerMBean(type + ",latency=append", myAppendLatency);
+    registerMBean(type + ",latency=rollover", myRolloverLatency);
+    if (layout instanceof JsonLayout) {
+      final String layoutType = "org.jetbrains.appenders:type=" + layout.getClass().getSimpleName() + suffix;
+      registerMBean(layoutType, ((JsonLayout) layout).getMetrics());
+      registerMBean(layoutType + ",latency=format", ((JsonLayout) layout).getFormatLatency());
+    }
+  }
+
+  private static boolean isRegistered(String objectName) {
+    try {
+      return ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(objectName));
+    } catch (JMException e) {
+      return false;
+    } catch (SecurityException e) {
+      return false;
+    }
+  }
+
+  private void registerMBean(String objectName, Object mbean) {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName mbeanName = new ObjectName(objectName);
+      server.registerMBean(mbean, mbeanName);
+      synchronized (myMBeanNames) {
+        myMBeanNames.add(mbeanName);
+      }
+    } catch (JMException e) {
+      LogLog.warn("Failed to register MBean " + objectName, e);
+    } catch (SecurityException e) {
+      LogLog.warn("Failed to register MBean " + objectName, e);
+    }
+  }
+
+  private void unregisterMBeans() {
+    synchronized (myMBeanNames) {
+      if (myMBeanNames.isEmpty()) return;
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      for (ObjectName mbeanName : myMBeanNames) {
+        try {
+          if (server.isRegistered(mbeanName)) {
+            server.unregisterMBean(mbeanName);
+          }
+        } catch (JMException e) {
+          LogLog.warn("Failed to unregister MBean " + mbeanName, e);
+        }
+      }
+      myMBeanNames.clear();
+    }
   }
 
   /**
@@ -239,8 +502,130 @@ public class NextRollingFileAppender extends FileAppender {
     maxFileSize = OptionConverter.toFileSize(value, maxFileSize + 1);
   }
 
+  protected void writeHeader() {
+    if (layout instanceof BinaryLayout && myStream != null && qw != null) {
+      writeBinaryHeader();
+    } else if (lengthPrefixed && layout != null && qw != null) {
+      writeFramed(layout.getHeader());
+    } else {
+      super.writeHeader();
+    }
+  }
+
+  protected void writeFooter() {
+    if (lengthPrefixed && layout != null && qw != null) {
+      writeFramed(layout.getFooter());
+      qw.flush();
+    } else {
+      super.writeFooter();
+    }
+  }
+
+  public void doAppend(LoggingEvent event) {
+    if (!combineWrites || lock.isHeldByCurrentThread()) {
+      // events appended while writing an event, e.g. by a filter, are written right away
+      super.doAppend(event);
+      return;
+    }
+
+    final PendingEvent pending = new PendingEvent(snapshot(event));
+    myPendingEvents.add(pending);
+    lock.lock();
+    try {
+      // the event may be already written by the thread which held the lock
+      while (!pending.written) {
+        writePendingEvents();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes a batch of the events published by the waiting threads with one flush.
+   */
+  private void writePendingEvents() {
+    myCombining = true;
+    myFlushPending = false;
+    try {
+      PendingEvent pending;
+      while (myBatch.size() < MAX_COMBINED_EVENTS && (pending = myPendingEvents.poll()) != null) {
+        myBatch.add(pending);
+        // filters, threshold and roll over are applied as for a single event
+        super.doAppend(pending.event);
+      }
+    } finally {
+      myCombining = false;
+      if (myFlushPending && qw != null) {
+        qw.flush();
+      }
+      for (PendingEvent pending : myBatch) {
+        pending.written = true;
+      }
+      myBatch.clear();
+    }
+  }
+
+  /**
+   * Takes the thread name, NDC, MDC and, if the layout renders it, the location into the event,
+   * as they are read lazily from the current thread, which may not be the one writing the event.
+   */
+  private LoggingEvent snapshot(LoggingEvent event) {
+    event.getThreadName();
+    event.getNDC();
+    event.getMDCCopy();
+    final Layout layout = this.layout;
+    if (layout instanceof JsonLayout && ((JsonLayout) layout).isRendered(JsonLayout.Field.LOCATION)) {
+      event.getLocationInformation();
+    }
+    return event;
+  }
+
+  protected boolean shouldFlush(LoggingEvent event) {
+    if (myCombining) {
+      myFlushPending |= super.shouldFlush(event);
+      return false;
+    }
+    return super.shouldFlush(event);
+  }
+
+  private static class PendingEvent {
+    private final LoggingEvent event;
+    /**
+     * Guarded by the lock of the appender.
+     */
+    private boolean written;
+
+    private PendingEvent(LoggingEvent event) {
+      this.event = event;
+    }
+  }
+
   protected void setQWForFiles(Writer writer) {
-    this.qw = new CountingQuietWriter(writer, errorHandler);
+    this.qw = new CountingQuietWriter(writer, errorHandler) {
+      public void flush() {
+        final Object jfrEvent = FlightRecorderEvents.INSTANCE.beginFlush();
+        super.flush();
+        FlightRecorderEvents.INSTANCE.endFlush(jfrEvent, name, fileName);
+      }
+    };
+  }
+
+  /**
+   * Keeps the file stream for {@link BinaryLayout}s, which write to it directly.
+   */
+  protected OutputStreamWriter createWriter(OutputStream os) {
+    if (layout instanceof BinaryLayout) {
+      myStream = bufferedIO ? new BufferedOutputStream(os, bufferSize) : os;
+      return super.createWriter(myStream);
+    }
+    myStream = null;
+    return super.createWriter(os);
+  }
+
+  protected void reset() {
+    myStream = null;
+    super.reset();
   }
 
   /**
@@ -250,13 +635,162 @@ public class NextRollingFileAppender extends FileAppender {
    * @since 0.9.0
    */
   protected void subAppend(LoggingEvent event) {
-    super.subAppend(event);
+    final long start = myAppendLatency.start();
+    final Object jfrEvent = FlightRecorderEvents.INSTANCE.beginAppend();
+    final long written = getCurrentFileSize();
+    if (layout instanceof BinaryLayout && myStream != null) {
+      subAppendBinary(event);
+    } else if (lengthPrefixed) {
+      subAppendFramed(event);
+    } else {
+      super.subAppend(event);
+    }
+    final long eventSize = getCurrentFileSize() - written;
+    myMetrics.eventAppended(eventSize);
+    final LoggerVolume volume = myLoggerVolume;
+    if (volume != null) {
+      volume.record(event.getLoggerName(), eventSize);
+    }
     if (fileName != null && qw != null) {
       long size = ((CountingQuietWriter) qw).getCount();
       if (size >= maxFileSize && size >= nextRollover) {
         rollOver();
       }
     }
+    myAppendLatency.stop(start);
+    FlightRecorderEvents.INSTANCE.endAppend(jfrEvent, name, event);
+
+    if (event.getTimeStamp() >= myNextVolumeSummary) {
+      appendVolumeSummary(event.getTimeStamp());
+    }
+  }
+
+  /**
+   * Writes an event with the loggers which wrote the most since the previous summary.
+   */
+  private void appendVolumeSummary(long time) {
+    final LoggerVolume volume = myLoggerVolume;
+    if (volume == null) return;
+
+    final long interval = loggerVolumeInterval;
+    myNextVolumeSummary = time + interval;
+    final long[][] snapshot = volume.snapshot();
+    final long[][] previous = myLastVolume;
+    myLastVolume = snapshot;
+
+    final Map<String, Object> loggers = new LinkedHashMap<String, Object>();
+    for (LoggerVolume.Entry entry : volume.top(snapshot, previous, VOLUME_SUMMARY_LOGGERS)) {
+      final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+      counts.put("events", entry.getEvents());
+      counts.put(entry.getUnit(), entry.getSize());
+      loggers.put(entry.getLogger(), counts);
+    }
+
+    final Map<String, Object> message = new LinkedHashMap<String, Object>();
+    message.put("message", "Loggers which wrote the most");
+    message.put("interval", TimeUnit.MILLISECONDS.toSeconds(interval));
+    message.put("loggers", loggers);
+    // bypasses the filters and the threshold, as the summary is about the events which passed them
+    subAppend(new LoggingEvent(Logger.class.getName(), VOLUME_LOGGER, time, Level.INFO, message, null));
+  }
+
+  private void subAppendFramed(LoggingEvent event) {
+    myText.setLength(0);
+    myText.append(layout.format(event));
+    if (layout.ignoresThrowable()) {
+      final String[] lines = event.getThrowableStrRep();
+      if (lines != null) {
+        for (String line : lines) {
+          myText.append(line).append(Layout.LINE_SEP);
+        }
+      }
+    }
+    writeFramed(myText.toString());
+    if (myText.capacity() > MAX_RETAINED_RECORD_SIZE) {
+      myText.setLength(0);
+      myText.trimToSize();
+    }
+    if (shouldFlush(event)) {
+      qw.flush();
+    }
+  }
+
+  private void writeFramed(String text) {
+    if (text == null) return;
+    try {
+      qw.write(FramedRecordReader.header(byteLength(text)));
+      qw.write(text);
+    } catch (UnsupportedEncodingException e) {
+      errorHandler.error("Failed to encode record for " + fileName, e, ErrorCode.WRITE_FAILURE);
+    }
+  }
+
+  private int byteLength(String text) throws UnsupportedEncodingException {
+    final String encoding = getEncoding();
+    if (encoding == null) {
+      return text.getBytes().length;
+    }
+    if ("UTF-8".equalsIgnoreCase(encoding) || "UTF8".equalsIgnoreCase(encoding)) {
+      // avoid encoding the record twice for the common case
+      return CborWriter.utf8Length(text, 0, text.length());
+    }
+    return text.getBytes(encoding).length;
+  }
+
+  private void writeBinaryHeader() {
+    try {
+      final int size;
+      if (lengthPrefixed) {
+        myRecord.reset();
+        if (((BinaryLayout) layout).formatHeader(myRecord) == 0) return;
+        final String header = FramedRecordReader.header(myRecord.size());
+        myStream.write(header.getBytes("US-ASCII"));
+        myRecord.writeTo(myStream);
+        size = header.length() + myRecord.size();
+      } else {
+        size = ((BinaryLayout) layout).formatHeader(myStream);
+      }
+      if (qw instanceof CountingQuietWriter) {
+        final CountingQuietWriter writer = (CountingQuietWriter) qw;
+        writer.setCount(writer.getCount() + size);
+      }
+    } catch (IOException e) {
+      if (e instanceof InterruptedIOException) {
+        Thread.currentThread().interrupt();
+      }
+      errorHandler.error("Failed to write binary header to " + fileName, e, ErrorCode.WRITE_FAILURE);
+    }
+  }
+
+  private void subAppendBinary(LoggingEvent event) {
+    try {
+      final int size;
+      final CountingQuietWriter writer = (CountingQuietWriter) qw;
+      if (lengthPrefixed) {
+        myRecord.reset();
+        ((BinaryLayout) layout).format(event, myRecord);
+        final String header = FramedRecordReader.header(myRecord.size());
+        myStream.write(header.getBytes("US-ASCII"));
+        myRecord.writeTo(myStream);
+        size = header.length() + myRecord.size();
+        if (myRecord.size() > MAX_RETAINED_RECORD_SIZE) {
+          myRecord = new ByteArrayOutputStream();
+        }
+      } else {
+        size = ((BinaryLayout) layout).format(event, myStream);
+      }
+      writer.setCount(writer.getCount() + size);
+      if (shouldFlush(event)) {
+        final Object jfrEvent = FlightRecorderEvents.INSTANCE.beginFlush();
+        myStream.flush();
+        FlightRecorderEvents.INSTANCE.endFlush(jfrEvent, name, fileName);
+      }
+    } catch (IOException e) {
+      if (e instanceof InterruptedIOException) {
+        Thread.currentThread().interrupt();
+      }
+      errorHandler.error("Failed to write binary event to " + fileName, e, ErrorCode.WRITE_FAILURE);
+    }
   }
 
 }
@@ -0,0 +1,360 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Category;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Denies events of loggers which exceed the rate limit set for their name prefix and level.
+ *
+ * Each limit is a token bucket holding up to one second of events, implemented
+ * as a lock-free virtual scheduling algorithm: an event under the limit costs one
+ * compare-and-set. Every {@link #setSummaryInterval(int) summaryInterval} seconds
+ * an event with the number of suppressed events per limit is appended to the
+ * appender of the filter, by a shared daemon timer when no event comes.
+ *
+ * When {@link #setBacklogThreshold(int) backlogThreshold} is set and at least that
+ * many threads wait for the {@link LockingFileAppender} of the filter, the limits are halved.
+ * The waiting threads are counted at most once per millisecond.
+ * <code>Category.callAppenders</code> holds the monitor of the logger the appender is
+ * attached to while it appends, so threads logging through that logger wait for the
+ * monitor rather than for the appender, and the backlog is seen only when the appender
+ * is attached to several loggers or called by other appenders from several threads.
+ */
+public class RateLimitFilter extends Filter {
+  private static final Pattern SEP_PATTERN = Pattern.compile("(?:\\p{Space}*?[,;]\\p{Space}*)+");
+  private static final Pattern PAIR_SEP_PATTERN = Pattern.compile("(?:\\p{Space}*?[:=]\\p{Space}*)+");
+
+  private static final String ANY_LOGGER = "*";
+  private static final int MAX_CACHED_LOGGERS = 10000;
+  private static final Limit[] NO_LIMITS = new Limit[0];
+  /**
+   * The longest interval between events in nanoseconds, small enough for the
+   * arrival times of a limit, even halved, not to overflow.
+   */
+  private static final long MAX_INTERVAL = Long.MAX_VALUE / 4;
+  private static final Logger SUMMARY_LOGGER = Logger.getLogger(RateLimitFilter.class);
+  private static final long BACKLOG_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long SUMMARY_CHECK_PERIOD = TimeUnit.SECONDS.toMillis(1);
+  private static Timer ourSummaryTimer;
+
+  private String myLimitsVal;
+  private long mySummaryInterval = TimeUnit.SECONDS.toMillis(60);
+  private int myBacklogThreshold = 0;
+
+  private volatile Limit[] myLimits = NO_LIMITS;
+  private final ConcurrentMap<String, Limit[]> myLoggerLimits = new ConcurrentHashMap<String, Limit[]>();
+  private final AtomicLong myNextSummary = new AtomicLong(Long.MAX_VALUE);
+  private volatile LoggingEvent mySummaryEvent;
+  private volatile boolean myAppenderResolved;
+  private volatile Appender myAppender;
+  private volatile Category myLogger;
+  private volatile long myNextBacklogCheck = System.nanoTime();
+  private volatile boolean myBacklogged;
+  private TimerTask mySummaryTask;
+
+  @Override
+  public int decide(final LoggingEvent loggingEvent) {
+    if (loggingEvent == null || loggingEvent == mySummaryEvent) return NEUTRAL;
+
+    final long time = loggingEvent.getTimeStamp();
+    final long nextSummary = myNextSummary.get();
+    if (time >= nextSummary) {
+      appendSummary(nextSummary, time);
+    }
+
+    final String loggerName = loggingEvent.getLoggerName();
+    if (loggerName == null) return NEUTRAL;
+
+    final int level = loggingEvent.getLevel().toInt();
+    for (Limit limit : limits(loggerName)) {
+      if (level <= limit.myMaxLevel) {
+        final long now = System.nanoTime();
+        if (limit.tryAcquire(isBacklogged(loggingEvent, now), now)) return NEUTRAL;
+        if (myLogger == null) {
+          // the summary goes to the appender of the logger
+          myLogger = loggingEvent.getLogger();
+        }
+        return DENY;
+      }
+    }
+    return NEUTRAL;
+  }
+
+  /**
+   * Sets the comma separated list of limits in events per second, as
+   * <code>prefix:rate</code> or <code>prefix:level:rate</code>, e.g.
+   * <code>com.example.noisy:1000, org.apache:INFO:100, *:10000</code>.
+   * A limit with a level applies to events at or below it, the prefix
+   * <code>*</code> matches all loggers. An event is counted against the
+   * limit with the longest matching prefix which applies to its level.
+   * A rate of 0 denies all events of the limit, a negative rate is ignored.
+   * As in {@link CategoryFilter}, <code>=</code> may separate the parts as well.
+   */
+  public void setLimits(final String limits) {
+    myLimitsVal = limits;
+    compileLimits();
+  }
+
+  /**
+   * Sets the interval in seconds of the events with the number of suppressed events, 60 by default.
+   * The events are appended without waiting for the next event once the filter is activated.
+   */
+  public void setSummaryInterval(final int seconds) {
+    mySummaryInterval = TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  /**
+   * Sets the number of threads waiting for the appender above which the limits are halved, 0 disables it.
+   * Threads logging through the logger the appender is attached to wait for its monitor instead and are
+   * not counted.
+   */
+  public void setBacklogThreshold(final int backlogThreshold) {
+    myBacklogThreshold = backlogThreshold;
+  }
+
+  @Override
+  public void activateOptions() {
+    compileLimits();
+    scheduleSummary();
+  }
+
+  private synchronized void scheduleSummary() {
+    if (mySummaryTask != null) {
+      mySummaryTask.cancel();
+    }
+    mySummaryTask = new SummaryTask(this);
+    summaryTimer().schedule(mySummaryTask, SUMMARY_CHECK_PERIOD, SUMMARY_CHECK_PERIOD);
+  }
+
+  private static synchronized Timer summaryTimer() {
+    if (ourSummaryTimer == null) {
+      ourSummaryTimer = new Timer("RateLimitFilter summary", true);
+    }
+    return ourSummaryTimer;
+  }
+
+  private void appendDueSummary() {
+    final long nextSummary = myNextSummary.get();
+    final long time = System.currentTimeMillis();
+    if (time >= nextSummary) {
+      appendSummary(nextSummary, time);
+    }
+  }
+
+  private void compileLimits() {
+    final List<Limit> limits = new ArrayList<Limit>();
+    if (myLimitsVal != null && myLimitsVal.trim().length() != 0) {
+      for (String limit : SEP_PATTERN.split(myLimitsVal.trim())) {
+        final String[] parts = PAIR_SEP_PATTERN.split(limit);
+        try {
+          if (parts.length == 2) {
+            final double rate = parseRate(parts[1]);
+            if (rate < 0) {
+              LogLog.warn("Negative rate of the rate limit " + limit + ", the limit is ignored");
+              continue;
+            }
+            limits.add(new Limit(parts[0], null, rate));
+          } else if (parts.length == 3) {
+            final Level level = Level.toLevel(parts[1], null);
+            if (level == null) {
+              LogLog.warn("Unknown level " + parts[1] + " of the rate limit " + limit + ", the limit is ignored");
+              continue;
+            }
+            final double rate = parseRate(parts[2]);
+            if (rate < 0) {
+              LogLog.warn("Negative rate of the rate limit " + limit + ", the limit is ignored");
+              continue;
+            }
+            limits.add(new Limit(parts[0], level, rate));
+          } else {
+            LogLog.warn("Malformed rate limit " + limit + ", the limit is ignored");
+          }
+        } catch (NumberFormatException e) {
+          LogLog.warn("Malformed rate of the rate limit " + limit + ", the limit is ignored");
+        }
+      }
+    }
+
+    myLimits = limits.toArray(new Limit[limits.size()]);
+    myLoggerLimits.clear();
+    myNextSummary.set(limits.isEmpty() ? Long.MAX_VALUE : System.currentTimeMillis() + mySummaryInterval);
+  }
+
+  private static double parseRate(final String rate) {
+    final double value = Double.parseDouble(rate);
+    if (Double.isNaN(value)) throw new NumberFormatException(rate);
+    return value;
+  }
+
+  /**
+   * @return the limits matching the logger, the longest prefix first
+   */
+  private Limit[] limits(final String loggerName) {
+    final Limit[] cached = myLoggerLimits.get(loggerName);
+    if (cached != null) return cached;
+
+    final List<Limit> matching = new ArrayList<Limit>();
+    for (Limit limit : myLimits) {
+      if (limit.matches(loggerName)) {
+        int i = 0;
+        while (i < matching.size() && matching.get(i).myPrefix.length() >= limit.myPrefix.length()) i++;
+        matching.add(i, limit);
+      }
+    }
+
+    final Limit[] limits = matching.isEmpty() ? NO_LIMITS : matching.toArray(new Limit[matching.size()]);
+    if (myLoggerLimits.size() < MAX_CACHED_LOGGERS) {
+      myLoggerLimits.put(loggerName, limits);
+    }
+    return limits;
+  }
+
+  private boolean isBacklogged(final LoggingEvent loggingEvent, final long now) {
+    if (myBacklogThreshold <= 0) return false;
+    // counting the waiting threads walks the queue of the lock
+    if (now - myNextBacklogCheck < 0) return myBacklogged;
+    myNextBacklogCheck = now + BACKLOG_CHECK_INTERVAL;
+
+    final Appender appender = getAppender(loggingEvent);
+    final boolean backlogged = appender instanceof LockingFileAppender
+            && ((LockingFileAppender) appender).getQueueLength() >= myBacklogThreshold;
+    myBacklogged = backlogged;
+    return backlogged;
+  }
+
+  private void appendSummary(final long due, final long time) {
+    // only one of the threads seeing the summary due appends it
+    if (!myNextSummary.compareAndSet(due, time + mySummaryInterval)) return;
+
+    final Map<String, Long> suppressed = new LinkedHashMap<String, Long>();
+    for (Limit limit : myLimits) {
+      final long count = limit.mySuppressed.getAndSet(0);
+      if (count > 0) {
+        suppressed.put(limit.toString(), count);
+      }
+    }
+    if (suppressed.isEmpty()) return;
+
+    final Map<String, Object> message = new LinkedHashMap<String, Object>();
+    message.put("message", "Events suppressed by the rate limits");
+    message.put("suppressed", suppressed);
+
+    // resolved again as the appender may have been removed meanwhile
+    final Category logger = myLogger;
+    final Appender appender = logger == null ? null : FilterAppenders.find(this, logger);
+    if (appender == null) {
+      LogLog.warn(message.toString());
+      return;
+    }
+
+    final LoggingEvent summary = new LoggingEvent(Logger.class.getName(), SUMMARY_LOGGER, time, Level.WARN, message, null);
+    mySummaryEvent = summary;
+    appender.doAppend(summary);
+  }
+
+  private Appender getAppender(final LoggingEvent loggingEvent) {
+    if (!myAppenderResolved) {
+      myAppender = FilterAppenders.find(this, loggingEvent.getLogger());
+      myAppenderResolved = true;
+    }
+    return myAppender;
+  }
+
+  /**
+   * Appends the summary when no event comes, holds the filter weakly so that a filter
+   * dropped by a reconfiguration stops its task.
+   */
+  private static class SummaryTask extends TimerTask {
+    private final WeakReference<RateLimitFilter> myFilter;
+
+    private SummaryTask(final RateLimitFilter filter) {
+      myFilter = new WeakReference<RateLimitFilter>(filter);
+    }
+
+    @Override
+    public void run() {
+      final RateLimitFilter filter = myFilter.get();
+      if (filter == null) {
+        cancel();
+        return;
+      }
+      try {
+        filter.appendDueSummary();
+      } catch (RuntimeException e) {
+        LogLog.error("Cannot append the summary of the rate limits", e);
+      }
+    }
+  }
+
+  private static class Limit {
+    private final String myPrefix;
+    private final Level myLevel;
+    private final int myMaxLevel;
+    private final boolean myDenyAll;
+    private final long myInterval;
+    private final long myTolerance;
+    /**
+     * The theoretical arrival time of the next event in nanoseconds.
+     */
+    private final AtomicLong myNextArrival = new AtomicLong(System.nanoTime());
+    private final AtomicLong mySuppressed = new AtomicLong();
+
+    private Limit(final String prefix, final Level level, final double rate) {
+      myPrefix = ANY_LOGGER.equals(prefix) ? "" : prefix;
+      myLevel = level;
+      myMaxLevel = level == null ? Integer.MAX_VALUE : level.toInt();
+      myDenyAll = rate == 0;
+      myInterval = myDenyAll ? MAX_INTERVAL
+                             : Math.max(1, Math.min(MAX_INTERVAL, (long) (TimeUnit.SECONDS.toNanos(1) / rate)));
+      // a second worth of events may come at once
+      myTolerance = Math.max(myInterval, TimeUnit.SECONDS.toNanos(1));
+    }
+
+    boolean matches(final String loggerName) {
+      return loggerName.startsWith(myPrefix);
+    }
+
+    boolean tryAcquire(final boolean backlogged, final long now) {
+      if (myDenyAll) {
+        mySuppressed.incrementAndGet();
+        return false;
+      }
+      final long increment = backlogged ? myInterval * 2 : myInterval;
+      for (;;) {
+        final long nextArrival = myNextArrival.get();
+        final long next = (nextArrival - now < 0 ? now : nextArrival) + increment;
+        if (next - now > myTolerance) {
+          mySuppressed.incrementAndGet();
+          return false;
+        }
+        if (myNextArrival.compareAndSet(nextArrival, next)) {
+          return true;
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      final String prefix = myPrefix.length() == 0 ? ANY_LOGGER : myPrefix;
+      return myLevel == null ? prefix : prefix + ":" + myLevel;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * An event which stands for a number of identical events suppressed by
+ * {@link DuplicateMessageFilter}. The layouts of this package render the
+ * number in the <code>repeated</code> field.
+ */
+public class RepeatedEvent extends LoggingEvent {
+  private static final long serialVersionUID = 1L;
+
+  private final int myRepeated;
+
+  /**
+   * @param event    the first of the suppressed events, which MDC, NDC and thread are already copied
+   * @param time     the time of the last suppressed event
+   * @param repeated the number of suppressed events
+   */
+  public RepeatedEvent(final LoggingEvent event, final long time, final int repeated) {
+    super(event.getFQNOfLoggerClass(), event.getLogger(), time, event.getLevel(), event.getMessage(),
+            event.getThreadName(), event.getThrowableInformation(), event.getNDC(),
+            event.locationInformationExists() ? event.getLocationInformation() : null, event.getProperties());
+    myRepeated = repeated;
+  }
+
+  public int getRepeated() {
+    return myRepeated;
+  }
+}
@@ -0,0 +1,376 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.beans.BeanInfo;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Writes events to a number of independent stripes, each being a
+ * {@link NextRollingFileAppender} with its own copy of the layout,
+ * so that threads logging at the same time do not wait for each other.
+ * The stripe is selected by the id of the logging thread.
+ *
+ * For the file <code>log</code> and the extension <code>.json</code>
+ * the stripes write the files
+ *  log-s0.1.json, log-s0.2.json, ...
+ *  log-s1.1.json, log-s1.2.json, ...
+ *
+ * Events of a thread are always written in order to the same stripe,
+ * events of different threads are to be merged by their timestamp.
+ *
+ * The retention is accounted across all stripes: when a stripe rolls over,
+ * the oldest files of all stripes are removed to keep at most
+ * {@link #setMaxBackupIndex(int) maxBackupIndex} files and
+ * {@link #setMaxTotalSize(String) maxTotalSize} bytes. The files currently
+ * written are never removed.
+ *
+ * <code>Category.callAppenders</code> holds the monitor of the logger the
+ * appender is attached to while it appends, so events logged through the
+ * loggers below it reach the stripes one at a time. The stripes write in
+ * parallel only when the appender is attached to several loggers or is
+ * called by other appenders from several threads.
+ */
+public class StripedRollingFileAppender extends AppenderSkeleton {
+  private static final String STRIPE_SUFFIX = "-s";
+
+  private String fileName = null;
+  private String fileExtension = "";
+  private int stripeCount = Runtime.getRuntime().availableProcessors();
+  private long maxFileSize = 10 * 1024 * 1024;
+  private int maxBackupIndex = 10;
+  private long maxTotalSize = 0;
+  private boolean immediateFlush = true;
+  private boolean bufferedIO = false;
+  private int bufferSize = 8 * 1024;
+  private boolean lengthPrefixed = false;
+  private String encoding = null;
+
+  /**
+   * Held while old files are removed and while a stripe rolls over.
+   */
+  private final Object myRetentionLock = new Object();
+  private volatile Stripe[] myStripes = new Stripe[0];
+
+  public String getFile() {
+    return fileName;
+  }
+
+  /**
+   * The base name of the files, the stripe and file number are appended to it.
+   */
+  public void setFile(String file) {
+    this.fileName = file.trim();
+  }
+
+  public String getFileExtension() {
+    return fileExtension;
+  }
+
+  public void setFileExtension(String fileExtension) {
+    this.fileExtension = fileExtension;
+  }
+
+  public int getStripes() {
+    return stripeCount;
+  }
+
+  /**
+   * Sets the number of stripes, the number of available processors by default.
+   */
+  public void setStripes(int stripes) {
+    this.stripeCount = stripes;
+  }
+
+  public long getMaximumFileSize() {
+    return maxFileSize;
+  }
+
+  public void setMaximumFileSize(long maxFileSize) {
+    this.maxFileSize = maxFileSize;
+  }
+
+  /**
+   * Sets the maximum size of each file, see {@link NextRollingFileAppender#setMaxFileSize(String)}.
+   */
+  public void setMaxFileSize(String value) {
+    maxFileSize = OptionConverter.toFileSize(value, maxFileSize + 1);
+  }
+
+  public int getMaxBackupIndex() {
+    return maxBackupIndex;
+  }
+
+  /**
+   * Sets the maximum number of files of all stripes together.
+   */
+  public void setMaxBackupIndex(int maxBackupIndex) {
+    this.maxBackupIndex = maxBackupIndex;
+  }
+
+  public long getMaxTotalSize() {
+    return maxTotalSize;
+  }
+
+  /**
+   * Sets the maximum size of the files of all stripes together, with the same
+   * suffixes as {@link #setMaxFileSize(String)}. Not limited by default.
+   */
+  public void setMaxTotalSize(String value) {
+    maxTotalSize = OptionConverter.toFileSize(value, maxTotalSize);
+  }
+
+  public boolean getImmediateFlush() {
+    return immediateFlush;
+  }
+
+  public void setImmediateFlush(boolean immediateFlush) {
+    this.immediateFlush = immediateFlush;
+  }
+
+  public boolean getBufferedIO() {
+    return bufferedIO;
+  }
+
+  public void setBufferedIO(boolean bufferedIO) {
+    this.bufferedIO = bufferedIO;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public void setBufferSize(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  public boolean isLengthPrefixed() {
+    return lengthPrefixed;
+  }
+
+  /**
+   * See {@link NextRollingFileAppender#setLengthPrefixed(boolean)}.
+   */
+  public void setLengthPrefixed(boolean lengthPrefixed) {
+    this.lengthPrefixed = lengthPrefixed;
+  }
+
+  public String getEncoding() {
+    return encoding;
+  }
+
+  public void setEncoding(String encoding) {
+    this.encoding = encoding;
+  }
+
+  public void activateOptions() {
+    if (fileName == null) {
+      LogLog.warn("File option not set for appender [" + name + "].");
+      return;
+    }
+    if (layout == null) {
+      LogLog.error("No layout set for the appender named [" + name + "].");
+      return;
+    }
+
+    closeStripes();
+    final Stripe[] stripes = new Stripe[Math.max(1, stripeCount)];
+    for (int i = 0; i < stripes.length; i++) {
+      final Layout stripeLayout = copyLayout(layout);
+      if (stripeLayout == null) {
+        closeStripes(stripes);
+        return;
+      }
+
+      final Stripe stripe = new Stripe();
+      stripe.setName(name + STRIPE_SUFFIX + i);
+      stripe.setLayout(stripeLayout);
+      stripe.setErrorHandler(errorHandler);
+      stripe.setFileExtension(fileExtension);
+      stripe.setMaximumFileSize(maxFileSize);
+      // the limit across all stripes in #removeOldFiles is always stricter
+      stripe.setMaxBackupIndex(maxBackupIndex);
+      stripe.setImmediateFlush(immediateFlush);
+      stripe.setBufferedIO(bufferedIO);
+      stripe.setBufferSize(bufferSize);
+      stripe.setLengthPrefixed(lengthPrefixed);
+      stripe.setEncoding(encoding);
+      stripe.setFile(fileName + STRIPE_SUFFIX + i);
+      stripe.activateOptions();
+      stripes[i] = stripe;
+    }
+    myStripes = stripes;
+    removeOldFiles();
+  }
+
+  /**
+   * Unlike {@link AppenderSkeleton#doAppend(LoggingEvent)} this method is not
+   * synchronized, only the selected stripe is locked.
+   */
+  public void doAppend(LoggingEvent event) {
+    if (closed) {
+      LogLog.error("Attempted to append to closed appender named [" + name + "].");
+      return;
+    }
+
+    if (!isAsSevereAsThreshold(event.getLevel())) {
+      return;
+    }
+
+    Filter f = getFirstFilter();
+    FILTER_LOOP:
+    while (f != null) {
+      switch (f.decide(event)) {
+        case Filter.DENY:
+          return;
+        case Filter.ACCEPT:
+          break FILTER_LOOP;
+        case Filter.NEUTRAL:
+          f = f.getNext();
+      }
+    }
+
+    append(event);
+  }
+
+  protected void append(LoggingEvent event) {
+    final Stripe[] stripes = myStripes;
+    if (stripes.length == 0) {
+      errorHandler.error("No output stream or file set for the appender named [" + name + "].");
+      return;
+    }
+    stripes[(int) (Thread.currentThread().getId() % stripes.length)].doAppend(event);
+  }
+
+  public synchronized void close() {
+    if (closed) return;
+    closed = true;
+    closeStripes();
+  }
+
+  public boolean requiresLayout() {
+    return true;
+  }
+
+  private void closeStripes() {
+    final Stripe[] stripes = myStripes;
+    myStripes = new Stripe[0];
+    closeStripes(stripes);
+  }
+
+  private static void closeStripes(Stripe[] stripes) {
+    for (Stripe stripe : stripes) {
+      if (stripe != null) {
+        stripe.close();
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest files of all stripes exceeding the retention limits.
+   */
+  private void removeOldFiles() {
+    synchronized (myRetentionLock) {
+      final File base = new File(fileName).getAbsoluteFile();
+      final File dir = base.getParentFile();
+      if (dir == null) return;
+
+      final Pattern pattern = Pattern.compile(
+              Pattern.quote(base.getName() + STRIPE_SUFFIX) + "\\d+\\.\\d+" + Pattern.quote(fileExtension));
+      final File[] files = dir.listFiles(new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+          return pattern.matcher(name).matches();
+        }
+      });
+      if (files == null) return;
+
+      final Set<File> writingFiles = new HashSet<File>();
+      for (Stripe stripe : myStripes) {
+        final String file = stripe.getFile();
+        if (file != null) {
+          writingFiles.add(new File(file).getAbsoluteFile());
+        }
+      }
+
+      final LinkedList<File> oldFiles = new LinkedList<File>();
+      long totalSize = 0;
+      for (File file : files) {
+        totalSize += file.length();
+        if (!writingFiles.contains(file.getAbsoluteFile())) {
+          oldFiles.add(file);
+        }
+      }
+      Collections.sort(oldFiles, new Comparator<File>() {
+        public int compare(File o1, File o2) {
+          final long t1 = o1.lastModified();
+          final long t2 = o2.lastModified();
+          return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+        }
+      });
+
+      int count = files.length;
+      while (!oldFiles.isEmpty()
+              && (count > Math.max(maxBackupIndex, writingFiles.size())
+              || (maxTotalSize > 0 && totalSize > maxTotalSize))) {
+        final File file = oldFiles.removeFirst();
+        final long size = file.length();
+        if (file.delete()) {
+          count--;
+          totalSize -= size;
+        } else {
+          LogLog.warn("Failed to remove old log file " + file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates a layout with the same options for a stripe, as layouts are not thread safe.
+   */
+  private Layout copyLayout(Layout layout) {
+    try {
+      final Layout copy = layout.getClass().getDeclaredConstructor().newInstance();
+      if (layout instanceof JsonLayout) {
+        ((JsonLayout) layout).copyOptionsTo((JsonLayout) copy);
+      } else {
+        final BeanInfo info = Introspector.getBeanInfo(layout.getClass());
+        for (PropertyDescriptor property : info.getPropertyDescriptors()) {
+          if (property.getReadMethod() != null && property.getWriteMethod() != null) {
+            property.getWriteMethod().invoke(copy, property.getReadMethod().invoke(layout));
+          }
+        }
+      }
+      copy.activateOptions();
+      return copy;
+    } catch (Exception e) {
+      errorHandler.error("Failed to create a layout for the stripes of the appender named [" + name + "].",
+              e, ErrorCode.GENERIC_FAILURE);
+      return null;
+    }
+  }
+
+  private class Stripe extends NextRollingFileAppender {
+    public void rollOver() {
+      // the next file is created before its name is published, so the files are not
+      // scanned for removal while any stripe is between the two
+      synchronized (myRetentionLock) {
+        super.rollOver();
+        // the first roll over opens the file while the stripes are being activated
+        if (myStripes.length != 0) {
+          removeOldFiles();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,810 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sends the records of its layout, one per line, to a TCP collector, e.g. a
+ * log shipper on the same host.
+ *
+ * Logging threads format the event and put the record into a bounded queue;
+ * a background thread sends the queued records in batches over a non-blocking
+ * <code>SocketChannel</code> and reconnects with an exponential backoff.
+ * Logging threads never wait for the network.
+ *
+ * When the queue is full, because the collector is slow or down, the queued
+ * records are moved to a spool of rolling segments in {@link #setSpoolDir(String) spoolDir},
+ * and the following records go there as well until the sender has replayed the
+ * spool, so records are sent in the order they were logged. The spool is bounded
+ * by {@link #setSpoolMaxFileSize(String) spoolMaxFileSize} and
+ * {@link #setSpoolMaxFiles(int) spoolMaxFiles}, the oldest segments are removed
+ * when it is full and their unsent records are counted as dropped. Segments left
+ * by a previous run are sent first. Without a spool, records are dropped while
+ * the queue is full.
+ */
+public class TcpJsonAppender extends AppenderSkeleton {
+  private static final long MIN_RECONNECT_DELAY = 100;
+  private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+  private static final long POLL_INTERVAL = 100;
+  private static final long SPOOL_POLL_INTERVAL = 10;
+  private static final String SPOOL_FILE = "spool";
+  private static final Pattern SPOOL_SEGMENT_PATTERN = Pattern.compile(Pattern.quote(SPOOL_FILE) + "\\.(\\d+)");
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Logger SPOOL_LOGGER = Logger.getLogger(TcpJsonAppender.class);
+
+  private String myHost = "localhost";
+  private int myPort = 5170;
+  private int myQueueSize = 8192;
+  private int myBatchSize = 64 * 1024;
+  private long myMaxReconnectDelay = TimeUnit.SECONDS.toMillis(30);
+  private long myCloseTimeout = TimeUnit.SECONDS.toMillis(5);
+  private String mySpoolDir;
+  private long mySpoolMaxFileSize = 10 * 1024 * 1024;
+  private int mySpoolMaxFiles = 10;
+
+  private BlockingQueue<byte[]> myQueue;
+  private Spool mySpool;
+  /**
+   * Whether new records go to the spool, guarded by the monitor of the appender.
+   */
+  private boolean mySpooling;
+  private Sender mySender;
+  private boolean myDropWarned;
+
+  private final AtomicLong mySent = new AtomicLong();
+  private final AtomicLong mySpooled = new AtomicLong();
+  private final AtomicLong myDropped = new AtomicLong();
+
+  public String getHost() {
+    return myHost;
+  }
+
+  public void setHost(final String host) {
+    myHost = host;
+  }
+
+  public int getPort() {
+    return myPort;
+  }
+
+  public void setPort(final int port) {
+    myPort = port;
+  }
+
+  /**
+   * Sets the number of records held in memory for the sender, 8192 by default.
+   */
+  public void setQueueSize(final int queueSize) {
+    myQueueSize = queueSize;
+  }
+
+  /**
+   * Sets the size in bytes up to which queued records are sent with one write, 64KB by default.
+   */
+  public void setBatchSize(final int batchSize) {
+    myBatchSize = batchSize;
+  }
+
+  /**
+   * Sets the longest delay in milliseconds between attempts to connect, 30 seconds by default.
+   */
+  public void setMaxReconnectDelay(final long maxReconnectDelay) {
+    myMaxReconnectDelay = maxReconnectDelay;
+  }
+
+  /**
+   * Sets the time in milliseconds the appender sends the remaining records when closed, 5 seconds by default.
+   */
+  public void setCloseTimeout(final long closeTimeout) {
+    myCloseTimeout = closeTimeout;
+  }
+
+  public String getSpoolDir() {
+    return mySpoolDir;
+  }
+
+  /**
+   * Sets the directory of the spool, no spool by default.
+   */
+  public void setSpoolDir(final String spoolDir) {
+    mySpoolDir = spoolDir;
+  }
+
+  /**
+   * Sets the size of a segment of the spool, with the suffixes "KB", "MB" or "GB", 10MB by default.
+   */
+  public void setSpoolMaxFileSize(final String value) {
+    mySpoolMaxFileSize = OptionConverter.toFileSize(value, mySpoolMaxFileSize + 1);
+  }
+
+  /**
+   * Sets the number of segments of the spool, 10 by default.
+   */
+  public void setSpoolMaxFiles(final int spoolMaxFiles) {
+    mySpoolMaxFiles = spoolMaxFiles;
+  }
+
+  /**
+   * @return the number of records written to the collector
+   */
+  public long getSentCount() {
+    return mySent.get();
+  }
+
+  /**
+   * @return the number of records written to the spool
+   */
+  public long getSpooledCount() {
+    return mySpooled.get();
+  }
+
+  /**
+   * @return the number of records dropped because the queue was full and there is no spool,
+   * or because their segment was removed from the full spool before they were sent
+   */
+  public long getDroppedCount() {
+    return myDropped.get();
+  }
+
+  /**
+   * @return whether the appender is connected to the collector
+   */
+  public boolean isConnected() {
+    final Sender sender = mySender;
+    return sender != null && sender.myConnected;
+  }
+
+  public boolean requiresLayout() {
+    return true;
+  }
+
+  @Override
+  public synchronized void activateOptions() {
+    myQueue = new ArrayBlockingQueue<byte[]>(Math.max(1, myQueueSize));
+    mySpooling = false;
+
+    SpoolReader reader = null;
+    if (mySpoolDir != null) {
+      final File dir = new File(mySpoolDir);
+      //noinspection ResultOfMethodCallIgnored
+      dir.mkdirs();
+      final List<File> leftovers = findSegments(dir);
+      mySpool = new Spool(dir, mySpoolMaxFileSize, mySpoolMaxFiles, myDropped);
+      mySpool.addSegments(leftovers);
+      mySpool.activateOptions();
+      reader = new SpoolReader(mySpool);
+      // the records of the previous run go first
+      mySpooling = !leftovers.isEmpty();
+    }
+
+    mySender = new Sender(reader);
+    final Thread thread = new Thread(mySender, "TcpJsonAppender " + (name != null ? name : myHost + ":" + myPort));
+    thread.setDaemon(true);
+    mySender.myThread = thread;
+    thread.start();
+  }
+
+  @Override
+  protected void append(final LoggingEvent event) {
+    if (mySender == null) {
+      errorHandler.error("Appender [" + name + "] is not activated.");
+      return;
+    }
+    if (layout == null) {
+      errorHandler.error("No layout set for the appender named [" + name + "].", null, ErrorCode.MISSING_LAYOUT);
+      return;
+    }
+
+    String text = layout.format(event);
+    if (!text.endsWith("\n")) {
+      text += "\n";
+    }
+
+    if (!mySpooling && myQueue.offer(text.getBytes(UTF_8))) return;
+
+    if (mySpool == null) {
+      myDropped.incrementAndGet();
+      if (!myDropWarned) {
+        myDropWarned = true;
+        LogLog.warn("Queue of appender [" + name + "] is full, records are dropped until the collector catches up");
+      }
+      return;
+    }
+
+    if (!mySpooling) {
+      mySpooling = true;
+      // the queued records go first: the sender reads the spool once the queue is empty,
+      // so none of them may stay behind the records written to the spool
+      final List<byte[]> queued = new ArrayList<byte[]>(myQueue.size());
+      myQueue.drainTo(queued);
+      for (byte[] record : queued) {
+        mySpool.write(new String(record, UTF_8));
+      }
+      mySpooled.addAndGet(queued.size());
+    }
+    mySpool.write(text);
+    mySpooled.incrementAndGet();
+  }
+
+  public void close() {
+    final Sender sender;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      sender = mySender;
+    }
+
+    if (sender != null) {
+      sender.stop(myCloseTimeout);
+    }
+    if (mySpool != null) {
+      mySpool.close();
+    }
+    final int remaining = (myQueue == null ? 0 : myQueue.size()) + (sender == null ? 0 : sender.getUnsentCount());
+    if (remaining > 0) {
+      myDropped.addAndGet(remaining);
+      LogLog.warn(remaining + " records of appender [" + name + "] were not sent before closing");
+    }
+  }
+
+  /**
+   * Called by the sender when it has read everything from the queue and the spool.
+   */
+  private synchronized boolean spoolDrained(final SpoolReader reader) throws IOException {
+    if (!mySpooling) return true;
+    if (!myQueue.isEmpty() || !reader.isCaughtUp(mySpool.getWritingFile())) return false;
+    mySpooling = false;
+    return true;
+  }
+
+  /**
+   * @return the segments in the spool directory, oldest first
+   */
+  private static List<File> findSegments(final File dir) {
+    final List<File> segments = new ArrayList<File>();
+    final File[] files = dir.listFiles();
+    if (files == null) return segments;
+
+    for (File file : files) {
+      if (file.isFile() && file.length() > 0 && SPOOL_SEGMENT_PATTERN.matcher(file.getName()).matches()) {
+        segments.add(file);
+      }
+    }
+    Collections.sort(segments, new Comparator<File>() {
+      public int compare(File o1, File o2) {
+        final long t1 = o1.lastModified();
+        final long t2 = o2.lastModified();
+        if (t1 != t2) return t1 < t2 ? -1 : 1;
+        final long id1 = segmentId(o1);
+        final long id2 = segmentId(o2);
+        return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+      }
+    });
+    return segments;
+  }
+
+  private static long segmentId(final File file) {
+    final Matcher matcher = SPOOL_SEGMENT_PATTERN.matcher(file.getName());
+    return matcher.matches() ? Long.parseLong(matcher.group(1)) : 0;
+  }
+
+  /**
+   * Segments of the spool, which remembers the order it wrote them in and the number of records of each.
+   * The reader opens, closes and deletes segments holding its monitor, so a segment is never taken for
+   * one written later under the same name.
+   */
+  private static class Spool extends NextRollingFileAppender {
+    private final Queue<File> mySegments = new ConcurrentLinkedQueue<File>();
+    /**
+     * The number of records of the complete segments which are not read yet.
+     */
+    private final Map<File, Integer> myRecordCounts = new ConcurrentHashMap<File, Integer>();
+    private final AtomicLong myDropped;
+    private File myLastSegment;
+    private int myLastSegmentRecords;
+    /**
+     * The segment the reader has open, it is read completely even if it is removed meanwhile.
+     */
+    private File myReading;
+
+    private Spool(final File dir, final long maxFileSize, final int maxFiles, final AtomicLong dropped) {
+      myDropped = dropped;
+      setJmx(false);
+      setLayout(new RecordLayout());
+      setEncoding("UTF-8");
+      setMaximumFileSize(maxFileSize);
+      setMaxBackupIndex(maxFiles);
+      setFile(new File(dir, SPOOL_FILE).getPath());
+    }
+
+    void addSegments(final List<File> segments) {
+      for (File segment : segments) {
+        try {
+          myRecordCounts.put(segment, countRecords(segment));
+        } catch (IOException e) {
+          LogLog.warn("Cannot read spool segment " + segment, e);
+        }
+      }
+      mySegments.addAll(segments);
+    }
+
+    @Override
+    public void rollOver() {
+      super.rollOver();
+      final File segment = getWritingFile();
+      if (segment != null && !segment.equals(myLastSegment)) {
+        if (myLastSegment != null) {
+          myRecordCounts.put(myLastSegment, myLastSegmentRecords);
+        }
+        myLastSegment = segment;
+        myLastSegmentRecords = 0;
+        // the name of a segment removed as the spool was full may be taken again,
+        // only the one the reader has open is still read
+        boolean head = true;
+        for (Iterator<File> it = mySegments.iterator(); it.hasNext(); head = false) {
+          if (it.next().equals(segment) && !(head && segment.equals(myReading))) {
+            it.remove();
+            segmentRemoved(segment);
+          }
+        }
+        mySegments.add(segment);
+      }
+    }
+
+    void write(final String record) {
+      // counted first, the segment may be rolled over after the record is written
+      myLastSegmentRecords++;
+      doAppend(new LoggingEvent(Logger.class.getName(), SPOOL_LOGGER, 0, Level.INFO, record, null));
+    }
+
+    /**
+     * Called for a segment removed as the spool was full before it was read, its records are dropped.
+     */
+    void segmentRemoved(final File segment) {
+      final Integer records = myRecordCounts.remove(segment);
+      if (records != null && records > 0) {
+        myDropped.addAndGet(records);
+        LogLog.warn(records + " records of the full spool " + segment + " were removed before they were sent");
+      }
+    }
+
+
+    private static int countRecords(final File segment) throws IOException {
+      final InputStream in = new FileInputStream(segment);
+      try {
+        final byte[] buffer = new byte[64 * 1024];
+        int records = 0;
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          for (int i = 0; i < read; i++) {
+            if (buffer[i] == '\n') records++;
+          }
+        }
+        return records;
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Writes the records as they are.
+   */
+  private static class RecordLayout extends Layout {
+    public String format(final LoggingEvent event) {
+      return (String) event.getMessage();
+    }
+
+    public boolean ignoresThrowable() {
+      return false;
+    }
+
+    public void activateOptions() {
+    }
+  }
+
+  /**
+   * Reads complete records from the segments of the spool while they are written.
+   */
+  private static class SpoolReader {
+    private final Spool mySpool;
+    private final Queue<File> mySegments;
+    private final List<File> myFinished = new ArrayList<File>();
+    private File mySegment;
+    private InputStream myInput;
+    private long myPosition;
+    private byte[] myBuffer = new byte[64 * 1024];
+    private int myStart;
+    private int myEnd;
+
+    private SpoolReader(final Spool spool) {
+      mySpool = spool;
+      mySegments = spool.mySegments;
+    }
+
+    /**
+     * @return the next record, or <code>null</code> if no complete record is written yet
+     */
+    byte[] next() throws IOException {
+      for (;;) {
+        for (int i = myStart; i < myEnd; i++) {
+          if (myBuffer[i] == '\n') {
+            final byte[] record = new byte[i + 1 - myStart];
+            System.arraycopy(myBuffer, myStart, record, 0, record.length);
+            myPosition += record.length;
+            myStart = i + 1;
+            return record;
+          }
+        }
+
+        if (myInput == null && !openNextSegment()) return null;
+
+        if (myStart > 0) {
+          System.arraycopy(myBuffer, myStart, myBuffer, 0, myEnd - myStart);
+          myEnd -= myStart;
+          myStart = 0;
+        }
+        if (myEnd == myBuffer.length) {
+          final byte[] buffer = new byte[myBuffer.length * 2];
+          System.arraycopy(myBuffer, 0, buffer, 0, myEnd);
+          myBuffer = buffer;
+        }
+
+        if (read() > 0) continue;
+
+        // a segment is complete once the spool writes the next one, read what was written before it
+        if (mySegments.size() <= 1 || read() > 0) return null;
+        closeSegment();
+        myStart = myEnd = 0;
+      }
+    }
+
+    private int read() throws IOException {
+      final int read = myInput.read(myBuffer, myEnd, myBuffer.length - myEnd);
+      if (read > 0) {
+        myEnd += read;
+      }
+      return read;
+    }
+
+    private boolean openNextSegment() {
+      synchronized (mySpool) {
+        while ((mySegment = mySegments.peek()) != null) {
+          try {
+            myInput = new FileInputStream(mySegment);
+            myPosition = 0;
+            mySpool.myReading = mySegment;
+            return true;
+          } catch (FileNotFoundException e) {
+            // removed as the spool was full
+            mySpool.segmentRemoved(mySegments.poll());
+          }
+        }
+        return false;
+      }
+    }
+
+    private void closeSegment() throws IOException {
+      myInput.close();
+      myInput = null;
+      synchronized (mySpool) {
+        final File segment = mySegments.poll();
+        mySpool.myReading = null;
+        // unless its name is taken by a later segment
+        if (!mySegments.contains(segment)) {
+          mySpool.myRecordCounts.remove(segment);
+        }
+        myFinished.add(segment);
+      }
+    }
+
+    /**
+     * Deletes the segments read completely, called once their records are sent.
+     */
+    void deleteFinished() {
+      synchronized (mySpool) {
+        for (File segment : myFinished) {
+          // a segment removed while it was read may have given its name to a later one
+          if (!mySegments.contains(segment)) {
+            //noinspection ResultOfMethodCallIgnored
+            segment.delete();
+          }
+        }
+      }
+      myFinished.clear();
+    }
+
+    boolean isCaughtUp(final File writing) {
+      // the segment open may be an earlier one of the same name
+      return myInput != null && mySegments.size() == 1 && mySegment.equals(writing)
+             && myStart == myEnd && myPosition == writing.length();
+    }
+
+    void close() {
+      try {
+        if (myInput != null) {
+          myInput.close();
+        }
+      } catch (IOException ignored) {
+        // nothing to do
+      }
+    }
+  }
+
+  /**
+   * Sends the records from the queue, then from the spool, over a non-blocking channel.
+   */
+  private class Sender implements Runnable {
+    private final SpoolReader myReader;
+    private final ByteBuffer myBatch = ByteBuffer.allocate(Math.max(1024, myBatchSize));
+    private final List<Integer> myRecordStarts = new ArrayList<Integer>();
+    /**
+     * The records of the batch read from the spool, they are not lost when the appender is closed.
+     */
+    private final BitSet mySpooledRecords = new BitSet();
+    private ByteBuffer myCurrent;
+    private byte[] myPending;
+    private boolean myPendingSpooled;
+    private boolean myLastSpooled;
+    private Selector mySelector;
+    private SocketChannel myChannel;
+    private SelectionKey myKey;
+    private int myFailures;
+    private volatile boolean myStopped;
+    private volatile boolean myConnected;
+    private Thread myThread;
+
+    private Sender(final SpoolReader reader) {
+      myReader = reader;
+    }
+
+    public void run() {
+      long delay = MIN_RECONNECT_DELAY;
+      try {
+        mySelector = Selector.open();
+        while (fillBatch()) {
+          while (myCurrent.hasRemaining()) {
+            if (myChannel == null && !connect()) {
+              if (myStopped) return;
+              Thread.sleep(delay);
+              delay = Math.min(delay * 2, Math.max(MIN_RECONNECT_DELAY, myMaxReconnectDelay));
+              continue;
+            }
+            try {
+              write();
+              delay = MIN_RECONNECT_DELAY;
+            } catch (IOException e) {
+              LogLog.warn("Connection of appender [" + name + "] to " + myHost + ":" + myPort + " failed", e);
+              disconnect();
+              rewind();
+            }
+          }
+          mySent.addAndGet(myRecordStarts.size());
+          // a record carried over to the next batch may be the last one of a finished segment
+          if (myReader != null && (myPending == null || !myPendingSpooled)) {
+            myReader.deleteFinished();
+          }
+        }
+      } catch (InterruptedException e) {
+        // closed
+      } catch (IOException e) {
+        LogLog.error("Appender [" + name + "] stopped sending records", e);
+      } finally {
+        disconnect();
+        if (myReader != null) {
+          myReader.close();
+        }
+        try {
+          if (mySelector != null) {
+            mySelector.close();
+          }
+        } catch (IOException ignored) {
+          // nothing to do
+        }
+      }
+    }
+
+    /**
+     * Waits for records and puts as many as fit into the batch.
+     *
+     * @return false if the appender is closed and nothing is left to send
+     */
+    private boolean fillBatch() throws IOException, InterruptedException {
+      myBatch.clear();
+      myRecordStarts.clear();
+      mySpooledRecords.clear();
+
+      byte[] record = myPending;
+      myLastSpooled = myPendingSpooled;
+      myPending = null;
+      while (record == null) {
+        record = nextRecord(myStopped ? 0 : POLL_INTERVAL);
+        if (record == null && myStopped) return false;
+      }
+
+      if (record.length > myBatch.capacity()) {
+        addRecord(0);
+        myCurrent = ByteBuffer.wrap(record);
+        return true;
+      }
+
+      do {
+        if (record.length > myBatch.remaining()) {
+          myPending = record;
+          myPendingSpooled = myLastSpooled;
+          break;
+        }
+        addRecord(myBatch.position());
+        myBatch.put(record);
+      } while ((record = nextRecord(0)) != null);
+
+      myBatch.flip();
+      myCurrent = myBatch;
+      return true;
+    }
+
+    private void addRecord(final int start) {
+      if (myLastSpooled) {
+        mySpooledRecords.set(myRecordStarts.size());
+      }
+      myRecordStarts.add(start);
+    }
+
+    private byte[] nextRecord(final long wait) throws IOException, InterruptedException {
+      myLastSpooled = false;
+      final byte[] record = myQueue.poll();
+      if (record != null) return record;
+
+      if (myReader != null) {
+        final byte[] spooled = myReader.next();
+        if (spooled != null) {
+          myLastSpooled = true;
+          return spooled;
+        }
+        if (!spoolDrained(myReader)) {
+          // the following records go to the spool, not to the queue
+          if (wait > 0) {
+            Thread.sleep(Math.min(wait, SPOOL_POLL_INTERVAL));
+          }
+          return null;
+        }
+      }
+      return wait > 0 ? myQueue.poll(wait, TimeUnit.MILLISECONDS) : null;
+    }
+
+    private boolean connect() {
+      SocketChannel channel = null;
+      try {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        final SelectionKey key = channel.register(mySelector, SelectionKey.OP_CONNECT);
+        if (!channel.connect(new InetSocketAddress(myHost, myPort))) {
+          final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+          while (!channel.finishConnect()) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) throw new SocketTimeoutException("Connect timed out");
+            mySelector.select(remaining);
+            mySelector.selectedKeys().clear();
+          }
+        }
+        key.interestOps(0);
+        myChannel = channel;
+        myKey = key;
+        myConnected = true;
+        myFailures = 0;
+        return true;
+      } catch (IOException e) {
+        if (myFailures++ == 0) {
+          LogLog.warn("Appender [" + name + "] cannot connect to " + myHost + ":" + myPort + ", retrying", e);
+        }
+        close(channel);
+        return false;
+      }
+    }
+
+    private void write() throws IOException {
+      if (myChannel.write(myCurrent) == 0) {
+        // the socket buffer is full, wait until the collector reads
+        myKey.interestOps(SelectionKey.OP_WRITE);
+        mySelector.select(POLL_INTERVAL);
+        mySelector.selectedKeys().clear();
+        myKey.interestOps(0);
+      }
+    }
+
+    /**
+     * Moves back to the first record which was not written completely, to send it again on the next connection.
+     */
+    private void rewind() {
+      int start = 0;
+      for (Integer recordStart : myRecordStarts) {
+        if (recordStart > myCurrent.position()) break;
+        start = recordStart;
+      }
+      myCurrent.position(start);
+    }
+
+    private void disconnect() {
+      myConnected = false;
+      if (myKey != null) {
+        myKey.cancel();
+        myKey = null;
+      }
+      close(myChannel);
+      myChannel = null;
+    }
+
+    private void close(final SocketChannel channel) {
+      if (channel == null) return;
+      try {
+        channel.close();
+        // completes the cancellation of the key of the channel
+        mySelector.selectNow();
+      } catch (IOException ignored) {
+        // nothing to do
+      }
+    }
+
+    /**
+     * @return the number of records taken from the queue but not sent
+     */
+    int getUnsentCount() {
+      int unsent = myPending != null && !myPendingSpooled ? 1 : 0;
+      final ByteBuffer current = myCurrent;
+      if (current != null && current.hasRemaining()) {
+        for (int i = 0; i < myRecordStarts.size(); i++) {
+          if (myRecordStarts.get(i) >= current.position() && !mySpooledRecords.get(i)) unsent++;
+        }
+      }
+      return unsent;
+    }
+
+    void stop(final long timeout) {
+      myStopped = true;
+      try {
+        myThread.join(timeout);
+        if (myThread.isAlive()) {
+          myThread.interrupt();
+          myThread.join(timeout);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of appenders with many threads logging at the same time.
+ *
+ * Runs on virtual threads when the JVM supports them (Java 21+) and on
+ * platform threads otherwise. Not a unit test, run it with
+ * <pre>
+ *   java -cp target/classes:target/test-classes:log4j.jar org.jetbrains.appenders.AppenderThroughputBenchmark [threads] [events per thread]
+ * </pre>
+ * The monitor based {@link FileAppender} is compared with the lock based
+ * {@link NextRollingFileAppender}, with and without combined writes.
+ * Appenders are called directly, as <code>Category.callAppenders</code> holds
+ * the monitor of the logger, so the results do not apply to events logged
+ * through a {@link Logger}.
+ */
+public class AppenderThroughputBenchmark {
+  private static final Logger LOG = Logger.getLogger(AppenderThroughputBenchmark.class);
+
+  public static void main(String[] args) throws Exception {
+    final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    final int events = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+    final File home = File.createTempFile("benchmark", "logs");
+    Paths.delete(home);
+    //noinspection ResultOfMethodCallIgnored
+    home.mkdirs();
+    try {
+      System.out.println("threads: " + threads + (isVirtualThreadsSupported() ? " virtual" : " platform")
+              + ", events per thread: " + events);
+
+      for (int round = 0; round < 3; round++) {
+        final FileAppender monitor = new FileAppender();
+        monitor.setLayout(newLayout());
+        monitor.setFile(new File(home, "monitor-" + round + ".json").getPath());
+        monitor.activateOptions();
+        run("FileAppender", monitor, threads, events);
+
+        final NextRollingFileAppender locking = new NextRollingFileAppender();
+        locking.setLayout(newLayout());
+        locking.setMaximumFileSize(Long.MAX_VALUE);
+        locking.setFile(new File(home, "locking-" + round).getPath());
+        locking.activateOptions();
+        run("NextRollingFileAppender", locking, threads, events);
+
+        final NextRollingFileAppender combining = new NextRollingFileAppender();
+        combining.setLayout(newLayout());
+        combining.setMaximumFileSize(Long.MAX_VALUE);
+        combining.setCombineWrites(true);
+        combining.setFile(new File(home, "combining-" + round).getPath());
+        combining.activateOptions();
+        run("NextRollingFileAppender combineWrites", combining, threads, events);
+      }
+    } finally {
+      Paths.delete(home);
+    }
+  }
+
+  private static JsonLayout newLayout() {
+    final JsonLayout layout = new JsonLayout();
+    layout.setHostName("benchmark");
+    layout.activateOptions();
+    return layout;
+  }
+
+  private static void run(String name, final Appender appender, int threads, final int events) throws Exception {
+    final ExecutorService executor = newExecutor(threads);
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < events; i++) {
+              appender.doAppend(new LoggingEvent(Logger.class.getName(), LOG, Level.INFO, "message " + i, null));
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+
+    final long startTime = System.nanoTime();
+    start.countDown();
+    done.await();
+    final long elapsed = System.nanoTime() - startTime;
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+    appender.close();
+
+    final long total = (long) threads * events;
+    System.out.println(String.format("%-40s %10d events/s", name, total * TimeUnit.SECONDS.toNanos(1) / elapsed));
+  }
+
+  private static boolean isVirtualThreadsSupported() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private static ExecutorService newExecutor(int threads) throws Exception {
+    if (isVirtualThreadsSupported()) {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+    return Executors.newFixedThreadPool(threads);
+  }
+}
@@ -0,0 +1,251 @@
+package org.jetbrains.appenders;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jayway.jsonassert.JsonAssert.with;
+import static org.hamcrest.Matchers.equalTo;
+
+public class BulkHttpAppenderTest {
+  private static final Logger LOG = Logger.getLogger(BulkHttpAppenderTest.class);
+
+  private HttpServer server;
+  private ExecutorService executor;
+  private BulkHttpAppender appender;
+  private final BlockingQueue<String> requests = new LinkedBlockingQueue<String>();
+  private final Queue<Integer> statuses = new ConcurrentLinkedQueue<Integer>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private volatile CountDownLatch release = new CountDownLatch(0);
+  private volatile String contentType;
+
+  @Before
+  public void before() throws IOException {
+    executor = Executors.newCachedThreadPool();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/_bulk", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        final int current = inFlight.incrementAndGet();
+        while (true) {
+          final int max = maxInFlight.get();
+          if (current <= max || maxInFlight.compareAndSet(max, current)) break;
+        }
+        try {
+          contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+          final String body = read(exchange.getRequestBody());
+          release.await(10, TimeUnit.SECONDS);
+
+          final Integer status = statuses.poll();
+          final byte[] response = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes("UTF-8");
+          exchange.sendResponseHeaders(status == null ? 200 : status, response.length);
+          final OutputStream out = exchange.getResponseBody();
+          out.write(response);
+          out.close();
+          requests.add(body);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      }
+    });
+    server.start();
+
+    appender = new BulkHttpAppender();
+    appender.setName("bulk");
+    appender.setUrl("http://localhost:" + server.getAddress().getPort() + "/_bulk");
+    appender.setRetryDelay(10);
+    // requests in flight at the same time may arrive in any order
+    appender.setMaxInFlight(1);
+    final JsonLayout layout = new JsonLayout();
+    layout.activateOptions();
+    appender.setLayout(layout);
+  }
+
+  @After
+  public void after() {
+    appender.close();
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void test_posts_batches_of_records() throws Exception {
+    appender.setBatchRecords(10);
+    appender.setMaxDelay(200);
+    appender.activateOptions();
+
+    append(0, 25);
+
+    assertBatch(poll(), 0, 10);
+    assertBatch(poll(), 10, 20);
+    // the rest is sent after maxDelay
+    assertBatch(poll(), 20, 25);
+    Assert.assertEquals("application/x-ndjson", contentType);
+    // waits for the senders
+    appender.close();
+    Assert.assertEquals(25, appender.getSentRecords());
+    Assert.assertEquals(3, appender.getSentBatches());
+  }
+
+  @Test
+  public void test_sends_batch_at_batch_size() throws Exception {
+    appender.setBatchSize("1KB");
+    appender.setMaxDelay(60000);
+    appender.activateOptions();
+
+    append(0, 10);
+
+    final String body = poll();
+    Assert.assertTrue(body.length() >= 1024);
+    Assert.assertTrue(body.split("\n").length < 20);
+  }
+
+  @Test
+  public void test_names_index_in_action_lines() throws Exception {
+    appender.setIndex("logs-\"app\"");
+    appender.setBatchRecords(1);
+    appender.activateOptions();
+
+    append(0, 1);
+
+    Assert.assertEquals("{\"index\":{\"_index\":\"logs-\\\"app\\\"\"}}", poll().split("\n")[0]);
+  }
+
+  @Test
+  public void test_retries_failed_batches() throws Exception {
+    statuses.add(503);
+    statuses.add(429);
+    appender.setBatchRecords(5);
+    appender.activateOptions();
+
+    append(0, 5);
+
+    final String body = poll();
+    Assert.assertEquals(body, poll());
+    Assert.assertEquals(body, poll());
+    assertBatch(body, 0, 5);
+    appender.close();
+    Assert.assertEquals(2, appender.getRetries());
+    Assert.assertEquals(5, appender.getSentRecords());
+    Assert.assertEquals(0, appender.getDroppedRecords());
+  }
+
+  @Test
+  public void test_counts_batch_waiting_for_retry_at_close_as_dropped() throws Exception {
+    statuses.add(503);
+    appender.setBatchRecords(5);
+    appender.setRetryDelay(60000);
+    appender.setCloseTimeout(100);
+    appender.activateOptions();
+
+    append(0, 5);
+
+    poll();
+    appender.close();
+    Assert.assertEquals(1, appender.getRetries());
+    Assert.assertEquals(0, appender.getSentRecords());
+    Assert.assertEquals(5, appender.getDroppedRecords());
+  }
+
+  @Test
+  public void test_drops_batches_rejected_by_endpoint() throws Exception {
+    statuses.add(400);
+    appender.setBatchRecords(5);
+    appender.activateOptions();
+
+    append(0, 10);
+
+    poll();
+    assertBatch(poll(), 5, 10);
+    appender.close();
+    Assert.assertEquals(0, appender.getRetries());
+    Assert.assertEquals(5, appender.getDroppedRecords());
+    Assert.assertEquals(5, appender.getSentRecords());
+  }
+
+  @Test
+  public void test_bounds_requests_in_flight() throws Exception {
+    release = new CountDownLatch(1);
+    appender.setBatchRecords(1);
+    appender.setMaxInFlight(2);
+    appender.setMaxQueuedBatches(3);
+    appender.activateOptions();
+
+    append(0, 2);
+    final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (inFlight.get() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    append(2, 10);
+    Thread.sleep(200);
+    Assert.assertEquals(2, maxInFlight.get());
+    // two batches are sent, three wait and the rest is dropped
+    Assert.assertEquals(5, appender.getDroppedRecords());
+
+    release.countDown();
+    for (int i = 0; i < 5; i++) {
+      poll();
+    }
+    appender.close();
+    Assert.assertEquals(5, appender.getSentRecords());
+    Assert.assertEquals(2, maxInFlight.get());
+  }
+
+  private void append(final int from, final int to) {
+    for (int i = from; i < to; i++) {
+      appender.doAppend(new LoggingEvent(Logger.class.getName(), LOG, Level.INFO, "m" + i, null));
+    }
+  }
+
+  private String poll() throws InterruptedException {
+    final String body = requests.poll(10, TimeUnit.SECONDS);
+    Assert.assertNotNull("No request", body);
+    return body;
+  }
+
+  private static void assertBatch(final String body, final int from, final int to) {
+    final String[] lines = body.split("\n");
+    Assert.assertEquals(2 * (to - from), lines.length);
+    for (int i = from; i < to; i++) {
+      Assert.assertEquals("{\"index\":{}}", lines[2 * (i - from)]);
+      with(lines[2 * (i - from) + 1]).assertThat("$.message", equalTo("m" + i));
+    }
+  }
+
+  private static String read(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) > 0) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toString("UTF-8");
+  }
+}
@@ -116,4 +116,73 @@ public class CategoryFilterTest {
     Assert.assertThat(consoleWriter.toString(), containsString("aaa"));
   }
 
+  @Test
+  public void should_filter_events_by_rules() {
+    consoleFilter.setDenyRules("org.apache:INFO, com.example.noisy; org.jetbrains.appenders.Category:DEBUG");
+
+    Logger.getLogger("org.apache.http").info("aaa");
+    Logger.getLogger("org.apache.http").warn("bbb");
+    Logger.getLogger("com.example.noisy.Foo").error("ccc");
+    Logger.getLogger("com.example.quiet").error("ddd");
+    Logger.getLogger(getClass()).debug("eee");
+    Logger.getLogger(getClass()).info("fff");
+
+    Assert.assertThat(consoleWriter.toString(), not(containsString("aaa")));
+    Assert.assertThat(consoleWriter.toString(), containsString("bbb"));
+    Assert.assertThat(consoleWriter.toString(), not(containsString("ccc")));
+    Assert.assertThat(consoleWriter.toString(), containsString("ddd"));
+    Assert.assertThat(consoleWriter.toString(), not(containsString("eee")));
+    Assert.assertThat(consoleWriter.toString(), containsString("fff"));
+  }
+
+  @Test
+  public void should_filter_an_event_by_the_highest_level_of_matching_rules() {
+    consoleFilter.setDenyRules("org:DEBUG, org.jetbrains:WARN, org.jetbrains.appenders:INFO");
+
+    Logger.getLogger(getClass()).warn("aaa");
+    Logger.getLogger(getClass()).error("bbb");
+    Logger.getLogger("org.apache").info("ccc");
+
+    Assert.assertThat(consoleWriter.toString(), not(containsString("aaa")));
+    Assert.assertThat(consoleWriter.toString(), containsString("bbb"));
+    Assert.assertThat(consoleWriter.toString(), containsString("ccc"));
+  }
+
+  @Test
+  public void should_combine_rules_with_deny_category() {
+    consoleFilter.setDenyCategory("qqq");
+    consoleFilter.setMaxDenyLevel(Level.INFO);
+    consoleFilter.setDenyRules("www:INFO");
+
+    Logger.getLogger("qqq").info("aaa");
+    Logger.getLogger("www").info("bbb");
+    Logger.getLogger("eee").info("ccc");
+
+    Assert.assertThat(consoleWriter.toString(), not(containsString("aaa")));
+    Assert.assertThat(consoleWriter.toString(), not(containsString("bbb")));
+    Assert.assertThat(consoleWriter.toString(), containsString("ccc"));
+  }
+
+  @Test
+  public void should_apply_changed_rules() {
+    consoleFilter.setDenyRules("qqq");
+    Logger.getLogger("qqq").info("aaa");
+
+    consoleFilter.setDenyRules("www");
+    Logger.getLogger("qqq").info("bbb");
+
+    Assert.assertThat(consoleWriter.toString(), not(containsString("aaa")));
+    Assert.assertThat(consoleWriter.toString(), containsString("bbb"));
+  }
+
+  @Test
+  public void should_ignore_a_rule_with_unknown_level() {
+    consoleFilter.setDenyRules("qqq:LOUD, www");
+
+    Logger.getLogger("qqq").info("aaa");
+    Logger.getLogger("www").info("bbb");
+
+    Assert.assertThat(consoleWriter.toString(), containsString("aaa"));
+    Assert.assertThat(consoleWriter.toString(), not(containsString("bbb")));
+  }
 }
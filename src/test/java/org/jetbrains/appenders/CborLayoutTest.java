@@ -0,0 +1,288 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CborLayoutTest {
+
+    private File home;
+    private CborLayout layout;
+
+    @Before
+    public void setUp() throws Exception {
+        home = File.createTempFile("aaa", "bbb");
+        Paths.delete(home);
+        //noinspection ResultOfMethodCallIgnored
+        home.mkdirs();
+
+        layout = new CborLayout();
+        layout.setHostName("vm");
+        layout.setTags("a,b");
+        layout.setFields("type:log4j");
+        layout.activateOptions();
+    }
+
+    @After
+    public void tearDown() {
+        Logger.getRootLogger().removeAllAppenders();
+        Paths.delete(home);
+    }
+
+    @Test
+    public void testDefaultFields() throws Exception {
+        MDC.clear();
+        MDC.put("mdc_key_1", "mdc_val_1");
+
+        Logger logger = Logger.getLogger(getClass());
+        LoggingEvent event = new LoggingEvent(
+            Logger.class.getName(), logger, Level.ERROR, "Hello é😀", new RuntimeException("Boom"));
+
+        Map<?, ?> record = (Map<?, ?>) decode(layout.toByteArray(event)).get(0);
+
+        Map<?, ?> exception = (Map<?, ?>) record.get("exception");
+        Assert.assertEquals("Boom", exception.get("message"));
+        Assert.assertEquals(RuntimeException.class.getName(), exception.get("class"));
+        Assert.assertTrue(((String) exception.get("stacktrace")).contains(getClass().getName()));
+        Assert.assertEquals("log4j", record.get("type"));
+        Assert.assertEquals("ERROR", record.get("severity"));
+        Assert.assertEquals(getClass().getName(), record.get("logger"));
+        Assert.assertEquals("Hello é😀", record.get("message"));
+        Assert.assertEquals("mdc_val_1", ((Map<?, ?>) record.get("mdc")).get("mdc_key_1"));
+        Assert.assertEquals("vm", record.get("host"));
+        Assert.assertEquals(Arrays.asList("a", "b"), record.get("tags"));
+        Assert.assertEquals("tag0:" + layout.formatTimestamp(event.getTimeStamp()), record.get("@timestamp"));
+        Assert.assertEquals(Thread.currentThread().getName(), record.get("thread"));
+        Assert.assertEquals("1", record.get("@version"));
+    }
+
+    @Test
+    public void testStructuredMessage() throws Exception {
+        layout.setMdcTypedValues(true);
+        layout.activateOptions();
+
+        MDC.clear();
+        MDC.put("retries", 3);
+
+        Map<String, Object> message = new LinkedHashMap<String, Object>();
+        message.put("user", "jdoe");
+        message.put("attempts", -300000L);
+        message.put("ratio", 0.5);
+        message.put("ok", true);
+        message.put("nothing", null);
+
+        LoggingEvent event = new LoggingEvent(
+            Logger.class.getName(), Logger.getLogger(getClass()), Level.INFO, message, null);
+
+        Map<?, ?> record = (Map<?, ?>) decode(layout.toByteArray(event)).get(0);
+        Assert.assertEquals(message, record.get("message"));
+        Assert.assertEquals(3L, ((Map<?, ?>) record.get("mdc")).get("retries"));
+    }
+
+    @Test
+    public void testTypedMDCQuotesOtherNumbers() throws Exception {
+        layout.setMdcTypedValues(true);
+        layout.activateOptions();
+
+        MDC.clear();
+        MDC.put("big", BigInteger.valueOf(5));
+        MDC.put("decimal", new BigDecimal("0.1"));
+        MDC.put("nan", Double.NaN);
+
+        LoggingEvent event = new LoggingEvent(
+            Logger.class.getName(), Logger.getLogger(getClass()), Level.INFO, "Hello", null);
+
+        Map<?, ?> mdc = (Map<?, ?>) ((Map<?, ?>) decode(layout.toByteArray(event)).get(0)).get("mdc");
+        Assert.assertEquals(5L, mdc.get("big"));
+        Assert.assertEquals("0.1", mdc.get("decimal"));
+        Assert.assertEquals("NaN", mdc.get("nan"));
+    }
+
+    @Test
+    public void testNextRollingFileAppender() throws Exception {
+        NextRollingFileAppender appender = new NextRollingFileAppender();
+        appender.setLayout(layout);
+        appender.setFileExtension(".cbor");
+        appender.setFile(new File(home, "log").getPath());
+        appender.activateOptions();
+
+        Logger.getRootLogger().removeAllAppenders();
+        Logger.getRootLogger().addAppender(appender);
+
+        for (int i = 0; i < 10; i++) {
+            Logger.getRootLogger().warn("message " + i);
+        }
+        appender.close();
+
+        byte[] bytes = readFile(new File(home, "log.1.cbor"));
+        List<Object> records = decode(bytes);
+        Assert.assertEquals(10, records.size());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("message " + i, ((Map<?, ?>) records.get(i)).get("message"));
+        }
+    }
+
+    @Test
+    public void testCompactKeysHeader() throws Exception {
+        layout.setCompactKeys(true);
+        layout.activateOptions();
+
+        NextRollingFileAppender appender = new NextRollingFileAppender();
+        appender.setLayout(layout);
+        appender.setFileExtension(".cbor");
+        appender.setFile(new File(home, "log").getPath());
+        appender.activateOptions();
+
+        Logger.getRootLogger().removeAllAppenders();
+        Logger.getRootLogger().addAppender(appender);
+
+        Logger.getRootLogger().warn("message");
+        appender.close();
+
+        List<Object> records = decode(readFile(new File(home, "log.1.cbor")));
+        Assert.assertEquals(2, records.size());
+        Map<?, ?> keys = (Map<?, ?>) ((Map<?, ?>) records.get(0)).get("@keys");
+        Assert.assertEquals("message", keys.get("m"));
+        Assert.assertEquals("@timestamp", keys.get("t"));
+        Assert.assertEquals("message", ((Map<?, ?>) records.get(1)).get("m"));
+    }
+
+    @Test
+    public void testNoHeaderByDefault() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(0, layout.formatHeader(out));
+        Assert.assertEquals(0, out.size());
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int x;
+            while ((x = is.read(buf)) > 0) {
+                bos.write(buf, 0, x);
+            }
+        } finally {
+            is.close();
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Decodes a sequence of CBOR data items; tagged items are decoded as {@code "tag<N>:<value>"}.
+     */
+    private static List<Object> decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        List<Object> items = new ArrayList<Object>();
+        while (true) {
+            int head = in.read();
+            if (head < 0) {
+                return items;
+            }
+            items.add(decode(in, head));
+        }
+    }
+
+    private static final Object BREAK = new Object();
+
+    private static Object decode(DataInputStream in, int head) throws IOException {
+        if (head < 0) {
+            throw new EOFException();
+        }
+        int major = head >> 5;
+        int info = head & 0x1F;
+        if (head == 0xFF) {
+            return BREAK;
+        }
+        if (major == 7) {
+            switch (head) {
+                case 0xF4: return false;
+                case 0xF5: return true;
+                case 0xF6: return null;
+                case 0xFB: return in.readDouble();
+                default: throw new IOException("Unsupported simple value " + head);
+            }
+        }
+        long val;
+        if (info < 24) {
+            val = info;
+        } else if (info == 24) {
+            val = in.readUnsignedByte();
+        } else if (info == 25) {
+            val = in.readUnsignedShort();
+        } else if (info == 26) {
+            val = in.readInt() & 0xFFFFFFFFL;
+        } else if (info == 27) {
+            val = in.readLong();
+        } else if (info == 31) {
+            val = -1;
+        } else {
+            throw new IOException("Unsupported additional info " + info);
+        }
+        switch (major) {
+            case 0:
+                return val;
+            case 1:
+                return -1 - val;
+            case 2:
+            case 3: {
+                byte[] data = new byte[(int) val];
+                in.readFully(data);
+                return new String(data, "UTF-8");
+            }
+            case 4: {
+                List<Object> list = new ArrayList<Object>();
+                for (Object item = decode(in, in.read()); item != BREAK; item = decode(in, in.read())) {
+                    list.add(item);
+                }
+                return list;
+            }
+            case 5: {
+                Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+                for (Object key = decode(in, in.read()); key != BREAK; key = decode(in, in.read())) {
+                    map.put(key, decode(in, in.read()));
+                }
+                return map;
+            }
+            case 6:
+                return "tag" + val + ":" + decode(in, in.read());
+            default:
+                throw new IOException("Unsupported major type " + major);
+        }
+    }
+}
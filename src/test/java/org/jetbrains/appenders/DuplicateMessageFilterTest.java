@@ -0,0 +1,171 @@
+package org.jetbrains.appenders;
+
+import com.jayway.jsonpath.JsonPath;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jayway.jsonassert.JsonAssert.with;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.spy;
+
+public class DuplicateMessageFilterTest {
+  private StringWriter consoleWriter;
+  private ConsoleAppender consoleAppender;
+  private DuplicateMessageFilter filter;
+
+  @Before
+  public void setUp() throws Exception {
+    consoleWriter = new StringWriter();
+
+    JsonLayout consoleLayout = new JsonLayout();
+    consoleLayout.activateOptions();
+
+    consoleAppender = spy(new ConsoleAppender());
+    doNothing().when(consoleAppender).activateOptions();
+    consoleAppender.setWriter(consoleWriter);
+    consoleAppender.setLayout(consoleLayout);
+    consoleAppender.activateOptions();
+
+    filter = new DuplicateMessageFilter();
+    filter.activateOptions();
+    consoleAppender.addFilter(filter);
+
+    Logger logger = Logger.getRootLogger();
+    logger.removeAllAppenders();
+    logger.addAppender(consoleAppender);
+    logger.setLevel(Level.ALL);
+  }
+
+  @After
+  public void tearDown() {
+    Logger.getRootLogger().removeAllAppenders();
+    MDC.clear();
+  }
+
+  @Test
+  public void should_collapse_a_burst() {
+    final long time = System.currentTimeMillis();
+    for (int i = 0; i < 100; i++) {
+      consoleAppender.doAppend(event("qqq", time + i, "aaa", null));
+    }
+    consoleAppender.doAppend(event("qqq", time + 2000, "bbb", null));
+
+    final String[] lines = lines();
+    Assert.assertEquals(3, lines.length);
+    with(lines[0]).assertThat("$.message", equalTo("aaa")).assertThat("$.repeated", nullValue());
+    with(lines[1])
+            .assertThat("$.message", equalTo("aaa"))
+            .assertThat("$.logger", equalTo("qqq"))
+            .assertThat("$.repeated", equalTo(99));
+    with(lines[2]).assertThat("$.message", equalTo("bbb"));
+  }
+
+  @Test
+  public void should_not_collapse_different_events() {
+    final long time = System.currentTimeMillis();
+    consoleAppender.doAppend(event("qqq", time, "aaa", null));
+    consoleAppender.doAppend(event("www", time, "aaa", null));
+    consoleAppender.doAppend(event("qqq", time, "bbb", null));
+    consoleAppender.doAppend(event("qqq", time, "aaa", new RuntimeException("x")));
+    consoleAppender.doAppend(event("qqq", time, "aaa", new IllegalStateException("x")));
+
+    Assert.assertEquals(5, lines().length);
+  }
+
+  @Test
+  public void should_end_a_burst_after_the_window() {
+    filter.setWindow(100);
+
+    final long time = System.currentTimeMillis();
+    consoleAppender.doAppend(event("qqq", time, "aaa", null));
+    consoleAppender.doAppend(event("qqq", time + 50, "aaa", null));
+    consoleAppender.doAppend(event("qqq", time + 500, "aaa", null));
+
+    final String[] lines = lines();
+    Assert.assertEquals(3, lines.length);
+    with(lines[1]).assertThat("$.repeated", equalTo(1));
+    with(lines[2]).assertThat("$.repeated", nullValue());
+  }
+
+  @Test
+  public void should_report_a_steady_repetition_once_per_window() {
+    filter.setWindow(1000);
+
+    final long time = System.currentTimeMillis();
+    for (int i = 0; i < 30; i++) {
+      consoleAppender.doAppend(event("qqq", time + i * 100, "aaa", null));
+    }
+    consoleAppender.doAppend(event("qqq", time + 5000, "bbb", null));
+
+    final String[] lines = lines();
+    Assert.assertEquals(5, lines.length);
+    with(lines[0]).assertThat("$.repeated", nullValue());
+    int repeated = 0;
+    for (int i = 1; i <= 3; i++) {
+      with(lines[i]).assertThat("$.message", equalTo("aaa"));
+      repeated += JsonPath.<Integer>read(lines[i], "$.repeated");
+    }
+    Assert.assertEquals(29, repeated);
+    with(lines[4]).assertThat("$.message", equalTo("bbb"));
+  }
+
+  @Test
+  public void should_not_render_structured_messages() {
+    final AtomicInteger rendered = new AtomicInteger();
+    final long time = System.currentTimeMillis();
+    for (int i = 0; i < 10; i++) {
+      final Map<String, Object> message = new LinkedHashMap<String, Object>() {
+        @Override
+        public String toString() {
+          rendered.incrementAndGet();
+          return super.toString();
+        }
+      };
+      message.put("status", 503);
+      consoleAppender.doAppend(new LoggingEvent(Logger.class.getName(), Logger.getLogger("qqq"), time + i, Level.INFO,
+              message, null));
+    }
+    consoleAppender.doAppend(event("qqq", time + 5000, "bbb", null));
+
+    final String[] lines = lines();
+    Assert.assertEquals(3, lines.length);
+    with(lines[1]).assertThat("$.repeated", equalTo(9)).assertThat("$.message.status", equalTo(503));
+    Assert.assertEquals(0, rendered.get());
+  }
+
+  @Test
+  public void should_keep_mdc_of_repeated_event() {
+    MDC.put("request", "r1");
+    Logger.getLogger("qqq").info("aaa");
+    Logger.getLogger("qqq").info("aaa");
+    MDC.put("request", "r2");
+
+    consoleAppender.doAppend(event("qqq", System.currentTimeMillis() + 5000, "bbb", null));
+
+    final String[] lines = lines();
+    Assert.assertEquals(3, lines.length);
+    with(lines[1]).assertThat("$.repeated", equalTo(1)).assertThat("$.mdc.request", equalTo("r1"));
+  }
+
+  private static LoggingEvent event(String logger, long time, String message, Throwable throwable) {
+    return new LoggingEvent(Logger.class.getName(), Logger.getLogger(logger), time, Level.INFO, message, throwable);
+  }
+
+  private String[] lines() {
+    return consoleWriter.toString().split("\n");
+  }
+}
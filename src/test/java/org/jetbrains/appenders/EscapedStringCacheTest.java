@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EscapedStringCacheTest {
+
+    @Test
+    public void testCapacityIsRoundedToPowerOfTwo() {
+        Assert.assertEquals(64, new EscapedStringCache(50).capacity());
+        Assert.assertEquals(1, new EscapedStringCache(1).capacity());
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        EscapedStringCache cache = new EscapedStringCache(16);
+
+        StringBuilder out = new StringBuilder();
+        cache.append(out, "org.jetbrains.\"quoted\"");
+        cache.append(out, "org.jetbrains.\"quoted\"");
+        cache.append(out, new String("org.jetbrains.\"quoted\""));
+
+        Assert.assertEquals(
+            "org.jetbrains.\\\"quoted\\\"org.jetbrains.\\\"quoted\\\"org.jetbrains.\\\"quoted\\\"", out.toString());
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testCollisionEvictsPreviousEntry() {
+        EscapedStringCache cache = new EscapedStringCache(1);
+
+        StringBuilder out = new StringBuilder();
+        cache.append(out, "a");
+        cache.append(out, "b");
+        cache.append(out, "a");
+
+        Assert.assertEquals("aba", out.toString());
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testLongStringsAreNotCached() {
+        EscapedStringCache cache = new EscapedStringCache(16);
+
+        StringBuilder val = new StringBuilder();
+        for (int i = 0; i <= EscapedStringCache.MAX_CACHED_LENGTH; i++) {
+            val.append('x');
+        }
+
+        StringBuilder out = new StringBuilder();
+        cache.append(out, val.toString());
+        cache.append(out, val.toString());
+
+        Assert.assertEquals(val.toString() + val.toString(), out.toString());
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(0, cache.getMisses());
+    }
+}
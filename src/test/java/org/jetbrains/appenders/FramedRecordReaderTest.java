@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static com.jayway.jsonassert.JsonAssert.with;
+import static org.hamcrest.Matchers.equalTo;
+
+public class FramedRecordReaderTest {
+
+    private File home;
+
+    @Before
+    public void setUp() throws Exception {
+        home = File.createTempFile("aaa", "bbb");
+        Paths.delete(home);
+        //noinspection ResultOfMethodCallIgnored
+        home.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        Logger.getRootLogger().removeAllAppenders();
+        Paths.delete(home);
+    }
+
+    @Test
+    public void testHeader() {
+        Assert.assertEquals("00000000:", FramedRecordReader.header(0));
+        Assert.assertEquals("0000abcd:", FramedRecordReader.header(0xABCD));
+        Assert.assertEquals(FramedRecordReader.HEADER_LENGTH, FramedRecordReader.header(Integer.MAX_VALUE).length());
+    }
+
+    @Test
+    public void testNextRollingFileAppender() throws Exception {
+        JsonLayout layout = new JsonLayout();
+        layout.setConstantsInHeader(true);
+        layout.activateOptions();
+
+        NextRollingFileAppender appender = new NextRollingFileAppender();
+        appender.setLayout(layout);
+        appender.setEncoding("UTF-8");
+        appender.setLengthPrefixed(true);
+        appender.setFile(new File(home, "log").getPath());
+        appender.activateOptions();
+
+        Logger.getRootLogger().removeAllAppenders();
+        Logger.getRootLogger().addAppender(appender);
+        for (int i = 0; i < 10; i++) {
+            Logger.getRootLogger().warn("message é😀 " + i);
+        }
+        appender.close();
+
+        File file = new File(home, "log.1");
+        FramedRecordReader reader = new FramedRecordReader(file);
+        try {
+            with(new String(reader.next(), "UTF-8")).assertThat("$.@version", equalTo("1"));
+            Assert.assertTrue(reader.skip());
+            for (int i = 1; i < 10; i++) {
+                with(new String(reader.next(), "UTF-8")).assertThat("$.message", equalTo("message é😀 " + i));
+            }
+            Assert.assertNull(reader.next());
+            Assert.assertEquals(file.length(), reader.getPosition());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testIncompleteLastRecord() throws Exception {
+        File file = new File(home, "log");
+        write(file, "00000003:abc00000005:de");
+
+        FramedRecordReader reader = new FramedRecordReader(file);
+        try {
+            Assert.assertEquals("abc", new String(reader.next(), "US-ASCII"));
+            long position = reader.getPosition();
+            Assert.assertNull(reader.next());
+            Assert.assertFalse(reader.skip());
+            Assert.assertEquals(position, reader.getPosition());
+
+            // the record is returned once the writer has completed it
+            append(file, "fgh");
+            Assert.assertEquals("defgh", new String(reader.next(), "US-ASCII"));
+            Assert.assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testIncompleteHeader() throws Exception {
+        File file = new File(home, "log");
+        write(file, "000");
+
+        FramedRecordReader reader = new FramedRecordReader(file);
+        try {
+            Assert.assertNull(reader.next());
+            Assert.assertEquals(0, reader.getPosition());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedHeader() throws Exception {
+        File file = new File(home, "log");
+        write(file, "{\"message\":\"not framed\"}");
+
+        FramedRecordReader reader = new FramedRecordReader(file);
+        try {
+            reader.next();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void write(File file, String text) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(text.getBytes("US-ASCII"));
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void append(File file, String text) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(text.getBytes("US-ASCII"));
+        } finally {
+            raf.close();
+        }
+    }
+}
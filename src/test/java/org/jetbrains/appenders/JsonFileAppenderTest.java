@@ -10,6 +10,12 @@ import java.io.*;
 import java.util.Set;
 import java.util.TreeSet;
 
+import static com.jayway.jsonassert.JsonAssert.with;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
 /**
  * @author Eugene Petrenko (eugene.petrenko@gmail.com)
  */
@@ -70,6 +76,110 @@ public class JsonFileAppenderTest {
     Assert.assertTrue(text.contains(message));
   }
 
+  @Test
+  public void test_json_appender_logs_path_of_current_file() throws IOException {
+    Logger.getRootLogger().removeAllAppenders();
+    Paths.delete(home);
+    //noinspection ResultOfMethodCallIgnored
+    home.mkdirs();
+
+    appender = new JsonFileAppender();
+    appender.setMaximumFileSize(1);
+    appender.setFile(new File(home, "log").getPath());
+    appender.activateOptions();
+    Logger.getRootLogger().addAppender(appender);
+
+    Logger.getLogger(getClass()).warn("first");
+    Logger.getLogger(getClass()).warn("second");
+    Logger.getRootLogger().removeAllAppenders();
+
+    with(readFile("log.1.json"))
+        .assertThat("$.message", equalTo("first"))
+        .assertThat("$.path", equalTo(new File(home, "log.1.json").getCanonicalPath()));
+    with(readFile("log.2.json"))
+        .assertThat("$.message", equalTo("second"))
+        .assertThat("$.path", equalTo(new File(home, "log.2.json").getCanonicalPath()));
+  }
+
+  @Test
+  public void test_json_appender_writes_key_dictionary() throws IOException {
+    Logger.getRootLogger().removeAllAppenders();
+    Paths.delete(home);
+    //noinspection ResultOfMethodCallIgnored
+    home.mkdirs();
+
+    final JsonLayout layout = new JsonLayout();
+    layout.setCompactKeys(true);
+    layout.activateOptions();
+
+    appender = new JsonFileAppender();
+    appender.setLayout(layout);
+    appender.setFile(new File(home, "log").getPath());
+    appender.activateOptions();
+    Logger.getRootLogger().addAppender(appender);
+
+    Logger.getLogger(getClass()).warn("compact message");
+    Logger.getRootLogger().removeAllAppenders();
+
+    final String[] lines = readFile("log.1.json").split("\n");
+    Assert.assertTrue(lines[0], lines[0].startsWith("{\"@keys\":{"));
+    Assert.assertTrue(lines[1], lines[1].contains("\"m\":\"compact message\""));
+  }
+
+  @Test
+  public void test_json_appender_writes_constants_in_header() throws IOException {
+    Logger.getRootLogger().removeAllAppenders();
+    Paths.delete(home);
+    //noinspection ResultOfMethodCallIgnored
+    home.mkdirs();
+
+    final JsonLayout layout = new JsonLayout();
+    layout.setConstantsInHeader(true);
+    layout.setTags("a,b");
+    layout.setFields("type:log4j");
+    layout.activateOptions();
+
+    appender = new JsonFileAppender();
+    appender.setLayout(layout);
+    appender.setFile(new File(home, "log").getPath());
+    appender.activateOptions();
+    Logger.getRootLogger().addAppender(appender);
+
+    Logger.getLogger(getClass()).warn("short message");
+    Logger.getRootLogger().removeAllAppenders();
+
+    final String[] lines = readFile("log.1.json").split("\n");
+    Assert.assertEquals(2, lines.length);
+    with(lines[0])
+        .assertThat("$.type", equalTo("log4j"))
+        .assertThat("$.tags", hasItems("a", "b"))
+        .assertThat("$.host", notNullValue())
+        .assertThat("$.path", equalTo(new File(home, "log.1.json").getCanonicalPath()))
+        .assertThat("$.@version", equalTo("1"));
+    with(lines[1])
+        .assertThat("$.message", equalTo("short message"))
+        .assertThat("$.type", nullValue())
+        .assertThat("$.tags", nullValue())
+        .assertThat("$.host", nullValue())
+        .assertThat("$.path", nullValue())
+        .assertThat("$.@version", nullValue());
+  }
+
+  private String readFile(String name) throws IOException {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final InputStream is = new FileInputStream(new File(home, name));
+    try {
+      final byte[] buf = new byte[8192];
+      int x;
+      while ((x = is.read(buf)) > 0) {
+        bos.write(buf, 0, x);
+      }
+    } finally {
+      is.close();
+    }
+    return bos.toString("utf-8");
+  }
+
 
   private Set<String> dumpFiles() {
     System.out.println("Files in the directory: ");
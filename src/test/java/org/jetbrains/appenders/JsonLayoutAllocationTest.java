@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Fails when formatting or appending an event allocates more than its recorded budget.
+ * <p/>
+ * The budgets are the bytes allocated per event measured after warming up, with some headroom for differences
+ * between JVMs. When a change reduces allocation, lower the budget to keep the gain; when a change has to allocate
+ * more, raise it deliberately.
+ */
+public class JsonLayoutAllocationTest {
+
+    private static final int EVENTS = 1000;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 20;
+
+    // measured on Java 8 plus a quarter, newer JVMs allocate less
+    private static final long FORMAT_BUDGET = 1400;
+    private static final long FORMAT_MDC_BUDGET = 2200;
+    private static final long FORMAT_EXCEPTION_BUDGET = 7600;
+    private static final long APPEND_BUDGET = 2200;
+
+    private static final Logger LOGGER = Logger.getLogger(JsonLayoutAllocationTest.class);
+
+    private com.sun.management.ThreadMXBean threads;
+    private File home;
+
+    @Before
+    public void setUp() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        home = File.createTempFile("allocation", "logs");
+        Paths.delete(home);
+        //noinspection ResultOfMethodCallIgnored
+        home.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        MDC.clear();
+        if (home != null) {
+            Paths.delete(home);
+        }
+    }
+
+    @Test
+    public void testFormat() {
+        final JsonLayout layout = newLayout();
+        assertBudget("format", FORMAT_BUDGET, events(null), new EventSink() {
+            public void accept(LoggingEvent event) {
+                layout.format(event);
+            }
+        });
+    }
+
+    @Test
+    public void testFormatWithMDC() {
+        for (int i = 0; i < 10; i++) {
+            MDC.put("key" + i, "value of the key " + i);
+        }
+        final JsonLayout layout = newLayout();
+        assertBudget("format with MDC", FORMAT_MDC_BUDGET, events(null), new EventSink() {
+            public void accept(LoggingEvent event) {
+                layout.format(event);
+            }
+        });
+    }
+
+    @Test
+    public void testFormatWithException() {
+        final JsonLayout layout = newLayout();
+        assertBudget("format with exception", FORMAT_EXCEPTION_BUDGET, events(new IllegalStateException("failure")),
+            new EventSink() {
+                public void accept(LoggingEvent event) {
+                    layout.format(event);
+                }
+            });
+    }
+
+    @Test
+    public void testAppend() {
+        final JsonFileAppender appender = new JsonFileAppender();
+        appender.setName("allocation-test");
+        appender.setMaximumFileSize(Long.MAX_VALUE);
+        appender.setFile(new File(home, "log").getPath());
+        appender.activateOptions();
+        try {
+            assertBudget("append", APPEND_BUDGET, events(null), new EventSink() {
+                public void accept(LoggingEvent event) {
+                    appender.doAppend(event);
+                }
+            });
+        } finally {
+            appender.close();
+        }
+    }
+
+    private static JsonLayout newLayout() {
+        JsonLayout layout = new JsonLayout();
+        layout.setHostName("allocation-test");
+        layout.activateOptions();
+        return layout;
+    }
+
+    /**
+     * Creates the events up front, so that only formatting is measured. The events differ, so that no rendered
+     * event is reused.
+     */
+    private static LoggingEvent[] events(Throwable throwable) {
+        LoggingEvent[] events = new LoggingEvent[EVENTS];
+        for (int i = 0; i < EVENTS; i++) {
+            events[i] = new LoggingEvent(Logger.class.getName(), LOGGER, Level.INFO, "message " + i, throwable);
+        }
+        return events;
+    }
+
+    private void assertBudget(String name, long budget, LoggingEvent[] events, EventSink sink) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            for (LoggingEvent event : events) {
+                sink.accept(event);
+            }
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            for (LoggingEvent event : events) {
+                sink.accept(event);
+            }
+        }
+        long perEvent = (threads.getThreadAllocatedBytes(thread) - before) / ((long) MEASURED_ROUNDS * EVENTS);
+
+        Assert.assertTrue(name + " allocates " + perEvent + " bytes per event, over the budget of " + budget,
+            perEvent <= budget);
+    }
+
+    private interface EventSink {
+        void accept(LoggingEvent event);
+    }
+}
@@ -20,6 +20,10 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 import org.apache.log4j.NDC;
+import org.apache.log4j.rewrite.PropertyRewritePolicy;
+import org.apache.log4j.rewrite.RewriteAppender;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -28,6 +32,14 @@ import org.junit.rules.TestName;
 import java.io.File;
 import java.io.StringWriter;
 import java.net.InetAddress;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.jayway.jsonassert.JsonAssert.with;
 import static org.hamcrest.Matchers.containsString;
@@ -285,4 +297,385 @@ public class JsonLayoutTest {
         with(consoleWriter.toString())
             .assertThat("$.message", equalTo("H\"e\\l/\nl\ro\u0000W\bo\tr\fl\u0001d"));
     }
+
+    @Test
+    public void testNameCache() throws Exception {
+        logger.info("Hello World");
+        logger.info("Hello World");
+
+        Assert.assertEquals(2, consoleLayout.getNameCacheHits());
+        Assert.assertEquals(2, consoleLayout.getNameCacheMisses());
+    }
+
+    @Test
+    public void testMDCTypedValues() throws Exception {
+        consoleLayout.setMdcTypedValues(true);
+        consoleLayout.activateOptions();
+
+        MDC.clear();
+        MDC.put("mdc_string", "1");
+        MDC.put("mdc_long", 2L);
+        MDC.put("mdc_double", 4.5);
+        MDC.put("mdc_nan", Double.NaN);
+        MDC.put("mdc_boolean", true);
+
+        logger.info("Hello World");
+
+        with(consoleWriter.toString())
+            .assertThat("$.mdc.mdc_string", equalTo("1"))
+            .assertThat("$.mdc.mdc_long", equalTo(2))
+            .assertThat("$.mdc.mdc_double", equalTo(4.5))
+            .assertThat("$.mdc.mdc_nan", equalTo("NaN"))
+            .assertThat("$.mdc.mdc_boolean", equalTo(true));
+    }
+
+    @Test
+    public void testMDCTypedValuesQuoteOtherNumbers() throws Exception {
+        consoleLayout.setMdcTypedValues(true);
+        consoleLayout.activateOptions();
+
+        MDC.clear();
+        MDC.put("mdc_big_integer", new BigInteger("123456789012345678901234567890"));
+        MDC.put("mdc_big_decimal", new BigDecimal("1E+3"));
+        MDC.put("mdc_infinity", Float.POSITIVE_INFINITY);
+        MDC.put("mdc_atomic", new AtomicLong(7));
+
+        logger.info("Hello World");
+
+        String json = consoleWriter.toString();
+        Assert.assertTrue(json, json.contains("\"mdc_big_integer\":123456789012345678901234567890"));
+        with(json)
+            .assertThat("$.mdc.mdc_big_decimal", equalTo("1E+3"))
+            .assertThat("$.mdc.mdc_infinity", equalTo("Infinity"))
+            .assertThat("$.mdc.mdc_atomic", equalTo("7"));
+    }
+
+    @Test
+    public void testFlattenedMDCKeys() throws Exception {
+        consoleLayout.setFlattenedMdcKeys("trace_id,tenant");
+        consoleLayout.activateOptions();
+
+        MDC.clear();
+        MDC.put("trace_id", "abc");
+        MDC.put("route", "/index");
+
+        logger.info("Hello World");
+
+        with(consoleWriter.toString())
+            .assertThat("$.trace_id", equalTo("abc"))
+            .assertThat("$.tenant", nullValue())
+            .assertThat("$.mdc.trace_id", nullValue())
+            .assertThat("$.mdc.route", equalTo("/index"));
+    }
+
+    @Test
+    public void testPropertiesOfRewrittenEvent() throws Exception {
+        StringWriter writer = new StringWriter();
+        ConsoleAppender consoleAppender = spy(new ConsoleAppender());
+        doNothing().when(consoleAppender).activateOptions();
+        consoleAppender.setWriter(writer);
+        consoleAppender.setLayout(consoleLayout);
+
+        PropertyRewritePolicy policy = new PropertyRewritePolicy();
+        policy.setProperties("tenant=acme");
+        RewriteAppender rewriteAppender = new RewriteAppender();
+        rewriteAppender.setRewritePolicy(policy);
+        rewriteAppender.addAppender(consoleAppender);
+
+        MDC.clear();
+        MDC.put("trace_id", "abc");
+        rewriteAppender.doAppend(new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "Hello World", null));
+
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "Hello World", null);
+        event.setProperty("tenant", "acme");
+        MDC.put("trace_id", "def");
+        consoleAppender.doAppend(event);
+
+        String[] lines = writer.toString().split("\n");
+        with(lines[0])
+            .assertThat("$.mdc.trace_id", equalTo("abc"))
+            .assertThat("$.mdc.tenant", equalTo("acme"));
+        // the MDC is copied into the event by setProperty
+        with(lines[1])
+            .assertThat("$.mdc.trace_id", equalTo("abc"))
+            .assertThat("$.mdc.tenant", equalTo("acme"));
+    }
+
+    @Test
+    public void testOnlyFlattenedMDCKeys() throws Exception {
+        consoleLayout.setFlattenedMdcKeys("trace_id");
+        consoleLayout.activateOptions();
+
+        MDC.clear();
+        MDC.put("trace_id", "abc");
+
+        logger.info("Hello World");
+
+        with(consoleWriter.toString())
+            .assertThat("$.trace_id", equalTo("abc"))
+            .assertThat("$.mdc", nullValue());
+    }
+
+    @Test
+    public void testMapMessage() throws Exception {
+        Map<String, Object> message = new LinkedHashMap<String, Object>();
+        message.put("user", "j\"doe");
+        message.put("attempts", 3);
+        message.put("roles", Arrays.asList("admin", "dev"));
+        message.put("nested", Collections.singletonMap("ok", true));
+
+        logger.info(message);
+
+        with(consoleWriter.toString())
+            .assertThat("$.message.user", equalTo("j\"doe"))
+            .assertThat("$.message.attempts", equalTo(3))
+            .assertThat("$.message.roles", hasItems("admin", "dev"))
+            .assertThat("$.message.nested.ok", equalTo(true));
+    }
+
+    @Test
+    public void testJsonRenderableMessage() throws Exception {
+        logger.info(new JsonRenderable() {
+            public void appendJson(StringBuilder out) {
+                out.append("{\"id\":");
+                JsonLayout.appendJsonString(out, "a\nb");
+                out.append('}');
+            }
+        });
+
+        with(consoleWriter.toString())
+            .assertThat("$.message.id", equalTo("a\nb"));
+    }
+
+    @Test
+    public void testStructuredMessagesDisabled() throws Exception {
+        consoleLayout.setStructuredMessages(false);
+        consoleLayout.activateOptions();
+
+        logger.info(Collections.singletonMap("key", "val"));
+
+        with(consoleWriter.toString())
+            .assertThat("$.message", equalTo("{key=val}"));
+    }
+
+    @Test
+    public void testMaxFieldLength() throws Exception {
+        consoleLayout.setMaxFieldLength(10);
+        consoleLayout.activateOptions();
+
+        logger.info("0123456789abcdef");
+
+        with(consoleWriter.toString())
+            .assertThat("$.message", equalTo("0123456789...[truncated 6 chars]"))
+            .assertThat("$.logger", equalTo(logger.getName()));
+    }
+
+    @Test
+    public void testMaxFieldLengthDoesNotSplitEscapesAndSurrogates() throws Exception {
+        consoleLayout.setMaxFieldLength(5);
+        consoleLayout.activateOptions();
+
+        logger.info("abcd\n");
+        logger.info("abcd\uD83D\uDE00");
+
+        String[] lines = consoleWriter.toString().split("\n");
+        with(lines[0]).assertThat("$.message", equalTo("abcd...[truncated 1 chars]"));
+        with(lines[1]).assertThat("$.message", equalTo("abcd...[truncated 2 chars]"));
+    }
+
+    @Test
+    public void testMaxFieldLengthOfStackTrace() throws Exception {
+        consoleLayout.setMaxFieldLength(64);
+        consoleLayout.activateOptions();
+
+        logger.error("Hello World", new RuntimeException("Hello World Exception"));
+
+        with(consoleWriter.toString())
+            .assertThat("$.exception.message", equalTo("Hello World Exception"))
+            .assertThat("$.exception.stacktrace", startsWith("java.lang.RuntimeException: Hello World Exception"))
+            .assertThat("$.exception.stacktrace", containsString("...[truncated "));
+    }
+
+    @Test
+    public void testMaxEventLength() throws Exception {
+        consoleLayout.setMaxEventLength(512);
+        consoleLayout.activateOptions();
+
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            message.append('x');
+        }
+        logger.info(message.toString());
+
+        String event = consoleWriter.toString();
+        Assert.assertTrue(event.length() < 1024);
+        with(event)
+            .assertThat("$.message", containsString("...[truncated "))
+            .assertThat("$.@version", equalTo("1"));
+    }
+
+    @Test
+    public void testFormatIntoBuffer() throws Exception {
+        consoleLayout.setMaxEventLength(512);
+        consoleLayout.activateOptions();
+
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            message.append('x');
+        }
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message.toString(), null);
+
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            batch.append('y');
+        }
+        int length = consoleLayout.format(event, batch);
+
+        String record = batch.substring(2000);
+        Assert.assertEquals(record.length(), length);
+        Assert.assertEquals(consoleLayout.format(event), record);
+        // the limit applies to the event, not to the buffer it is appended to
+        with(record).assertThat("$.message", containsString("xxx...[truncated "));
+    }
+
+    @Test
+    public void testOversizedBufferIsReleased() throws Exception {
+        consoleLayout.setBufferSize(256);
+        consoleLayout.setMaxRetainedBufferSize(1024);
+        consoleLayout.activateOptions();
+
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            message.append('x');
+        }
+        logger.info(message.toString());
+
+        Assert.assertEquals(256, consoleLayout.getBufferCapacity());
+        with(consoleWriter.toString()).assertThat("$.message", equalTo(message.toString()));
+    }
+
+    @Test
+    public void testCompactKeys() throws Exception {
+        consoleLayout.setCompactKeys(true);
+        consoleLayout.setIncludedFields("location");
+        consoleLayout.activateOptions();
+
+        MDC.clear();
+        MDC.put("mdc_key_1", "mdc_val_1");
+
+        logger.error("Hello World", new RuntimeException("Hello World Exception"));
+
+        with(consoleWriter.toString())
+            .assertThat("$.x.m", equalTo("Hello World Exception"))
+            .assertThat("$.x.c", equalTo(RuntimeException.class.getName()))
+            .assertThat("$.s", equalTo("ERROR"))
+            .assertThat("$.o.m", equalTo(testName.getMethodName()))
+            .assertThat("$.l", equalTo(logger.getName()))
+            .assertThat("$.m", equalTo("Hello World"))
+            .assertThat("$.c.mdc_key_1", equalTo("mdc_val_1"))
+            .assertThat("$.t", notNullValue())
+            .assertThat("$.v", equalTo("1"))
+            .assertThat("$.message", nullValue());
+
+        with(consoleLayout.getHeader())
+            .assertThat("$.@keys.t", equalTo("@timestamp"))
+            .assertThat("$.@keys.['x.s']", equalTo("exception.stacktrace"))
+            .assertThat("$.@keys.['o.l']", equalTo("location.line"));
+    }
+
+    @Test
+    public void testKeyAliases() throws Exception {
+        consoleLayout.setKeyAliases("@timestamp:ts,exception.stacktrace:trace,mdc.trace_id:tid");
+        consoleLayout.activateOptions();
+
+        MDC.clear();
+        MDC.put("trace_id", "abc");
+
+        logger.error("Hello World", new RuntimeException("Hello World Exception"));
+
+        with(consoleWriter.toString())
+            .assertThat("$.ts", notNullValue())
+            .assertThat("$.exception.trace", notNullValue())
+            .assertThat("$.mdc.tid", equalTo("abc"))
+            .assertThat("$.message", equalTo("Hello World"));
+
+        with(consoleLayout.getHeader())
+            .assertThat("$.@keys.ts", equalTo("@timestamp"))
+            .assertThat("$.@keys.['exception.trace']", equalTo("exception.stacktrace"))
+            .assertThat("$.@keys.['mdc.tid']", equalTo("mdc.trace_id"));
+    }
+
+    @Test
+    public void testNoHeaderByDefault() throws Exception {
+        Assert.assertNull(consoleLayout.getHeader());
+    }
+
+    @Test
+    public void testRenderedEventIsReused() throws Exception {
+        JsonLayout same = new JsonLayout();
+        same.activateOptions();
+        JsonLayout typed = new JsonLayout();
+        typed.setMdcTypedValues(true);
+        typed.activateOptions();
+        JsonLayout disabled = new JsonLayout();
+        disabled.setReuseRenderedEvents(false);
+        disabled.activateOptions();
+
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "Hello World", null);
+        String text = consoleLayout.format(event);
+
+        Assert.assertSame(text, same.format(event));
+        Assert.assertNotSame(text, typed.format(event));
+        Assert.assertNotSame(text, disabled.format(event));
+        Assert.assertEquals(text, disabled.format(event));
+
+        LoggingEvent next = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "Hello World", null);
+        Assert.assertNotSame(text, same.format(next));
+    }
+
+    @Test
+    public void testLargeRenderedEventIsNotKept() throws Exception {
+        JsonLayout first = new JsonLayout();
+        first.setMaxRetainedBufferSize(64);
+        first.activateOptions();
+        JsonLayout second = new JsonLayout();
+        second.setMaxRetainedBufferSize(64);
+        second.activateOptions();
+
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "Hello World", null);
+        String text = first.format(event);
+
+        Assert.assertTrue(text.length() > 64);
+        Assert.assertNotSame(text, second.format(event));
+        Assert.assertEquals(text, second.format(event));
+    }
+
+    @Test
+    public void testRenderedEventIsNotReusedForDifferentPaths() throws Exception {
+        JsonLayout first = new JsonLayout();
+        first.activateOptions();
+        first.fileOpened("first.log");
+        JsonLayout second = new JsonLayout();
+        second.activateOptions();
+        second.fileOpened("second.log");
+
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "Hello World", null);
+        with(first.format(event)).assertThat("$.path", equalTo(new File("first.log").getCanonicalPath()));
+        with(second.format(event)).assertThat("$.path", equalTo(new File("second.log").getCanonicalPath()));
+    }
+
+    @Test
+    public void testHostNameIsResolvedInBackground() throws Exception {
+        JsonLayout layout = new JsonLayout();
+        layout.activateOptions();
+        Assert.assertTrue(LocalHost.awaitResolved(30, TimeUnit.SECONDS));
+
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "Hello World", null);
+        with(layout.format(event)).assertThat("$.host", equalTo(InetAddress.getLocalHost().getHostName()));
+
+        JsonLayout configured = new JsonLayout();
+        configured.setHostName("configured");
+        configured.activateOptions();
+        with(configured.format(event)).assertThat("$.host", equalTo("configured"));
+    }
 }
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.appenders;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverValues() {
+        for (long value = 0; value < 100000; value++) {
+            int bucket = LatencyHistogram.bucket(value);
+            Assert.assertTrue(value + " above bucket " + bucket, value <= LatencyHistogram.upperBound(bucket));
+            Assert.assertTrue(value + " below bucket " + bucket,
+                bucket == 0 || value > LatencyHistogram.upperBound(bucket - 1));
+        }
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentile(0.99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMax());
+        assertWithin(500000, histogram.getPercentile(0.5));
+        assertWithin(990000, histogram.getPercentile(0.99));
+        assertWithin(999000, histogram.getPercentile(0.999));
+        Assert.assertEquals(1000, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void testSampling() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.setSampling(10);
+        for (int i = 0; i < 100; i++) {
+            histogram.stop(histogram.start());
+        }
+        Assert.assertEquals(10, histogram.getCount());
+
+        histogram.setSampling(0);
+        for (int i = 0; i < 100; i++) {
+            histogram.stop(histogram.start());
+        }
+        Assert.assertEquals(10, histogram.getCount());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        Assert.assertTrue(expected + " != " + actual, actual >= expected && actual <= expected * 1.125);
+    }
+}
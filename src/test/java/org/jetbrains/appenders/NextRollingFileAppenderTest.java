@@ -1,15 +1,30 @@
 package org.jetbrains.appenders;
 
+import com.jayway.jsonpath.JsonPath;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.NDC;
+import org.apache.log4j.spi.LoggingEvent;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * @author Eugene Petrenko (eugene.petrenko@gmail.com)
@@ -126,6 +141,199 @@ public class NextRollingFileAppenderTest {
     assertFiles("log.1.json", "log.2.json", "log.3.json", "log.4.json");
   }
 
+  @Test
+  public void test_combine_writes() throws Exception {
+    appender.setMaximumFileSize(10 * 1024 * 1024);
+    appender.setCombineWrites(true);
+    initAppender();
+
+    final int threads = 8;
+    final int events = 200;
+    final Thread[] writers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final String prefix = "thread" + t;
+      writers[t] = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < events; i++) {
+            Logger.getRootLogger().warn(prefix + " " + i);
+          }
+        }
+      });
+      writers[t].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    // every event is flushed before the logging call returns
+    final List<String> lines = readLines(new File(home, "log.1"));
+    Assert.assertEquals(threads * events, lines.size());
+
+    final Map<String, Integer> next = new HashMap<String, Integer>();
+    for (String line : lines) {
+      final String[] message = JsonPath.<String>read(line, "$.message").split(" ");
+      final Integer expected = next.get(message[0]);
+      Assert.assertEquals(expected == null ? 0 : expected, Integer.parseInt(message[1]));
+      next.put(message[0], Integer.parseInt(message[1]) + 1);
+    }
+  }
+
+  @Test
+  public void test_combine_writes_keeps_context_of_each_thread() throws Exception {
+    appender.setMaximumFileSize(10 * 1024 * 1024);
+    appender.setCombineWrites(true);
+    initAppender();
+
+    final int threads = 8;
+    final int events = 500;
+    final Thread[] writers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final String name = "T" + t;
+      writers[t] = new Thread(new Runnable() {
+        public void run() {
+          MDC.put("writer", name);
+          NDC.push(name);
+          // appended directly, as a logger would let one thread at a time through
+          for (int i = 0; i < events; i++) {
+            appender.doAppend(new LoggingEvent(Logger.class.getName(), Logger.getRootLogger(), Level.INFO, name, null));
+          }
+          NDC.remove();
+          MDC.remove("writer");
+        }
+      }, name);
+      writers[t].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    final List<String> lines = readLines(new File(home, "log.1"));
+    Assert.assertEquals(threads * events, lines.size());
+    for (String line : lines) {
+      final String name = JsonPath.read(line, "$.message");
+      Assert.assertEquals(line, name, JsonPath.read(line, "$.thread"));
+      Assert.assertEquals(line, name, JsonPath.read(line, "$.mdc.writer"));
+      Assert.assertEquals(line, name, JsonPath.read(line, "$.ndc"));
+    }
+  }
+
+  @Test
+  public void test_jmx() throws Exception {
+    Assert.assertFalse(appender.isJmx());
+    appender.setName("jmx-test");
+    appender.setJmx(true);
+    initAppender();
+
+    Logger.getRootLogger().warn("aaa");
+    Logger.getRootLogger().warn("bbb");
+
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName("org.jetbrains.appenders:type=NextRollingFileAppender,name=\"jmx-test\"");
+    final ObjectName layoutName = new ObjectName("org.jetbrains.appenders:type=JsonLayout,name=\"jmx-test\"");
+    Assert.assertEquals(2L, server.getAttribute(name, "EventsAppended"));
+    Assert.assertEquals(2L, server.getAttribute(name, "Rollovers"));
+    Assert.assertEquals(3, server.getAttribute(name, "CurrentFileId"));
+    Assert.assertEquals(new File(home, "log.3").getPath(), server.getAttribute(name, "CurrentFile"));
+    Assert.assertTrue((Long) server.getAttribute(name, "BytesWritten") > 8);
+    Assert.assertEquals(2L, server.getAttribute(layoutName, "EventsFormatted"));
+    Assert.assertEquals(0L, server.getAttribute(layoutName, "FormattingErrors"));
+    Assert.assertEquals(2L, server.getAttribute(new ObjectName(name + ",latency=append"), "Count"));
+    Assert.assertEquals(2L, server.getAttribute(new ObjectName(name + ",latency=rollover"), "Count"));
+    Assert.assertEquals(2L, server.getAttribute(new ObjectName(layoutName + ",latency=format"), "Count"));
+
+    // an appender of the same name does not take over the name
+    final NextRollingFileAppender other = new NextRollingFileAppender();
+    other.setName("jmx-test");
+    other.setJmx(true);
+    other.setLayout(new JsonLayout());
+    other.setFile(new File(home, "other").getPath());
+    other.activateOptions();
+    other.close();
+    Assert.assertEquals(2L, server.getAttribute(name, "EventsAppended"));
+    Assert.assertTrue(server.isRegistered(layoutName));
+
+    appender.close();
+    Assert.assertFalse(server.isRegistered(name));
+    Assert.assertFalse(server.isRegistered(layoutName));
+  }
+
+  @Test
+  public void test_logger_volume() {
+    appender.setMaximumFileSize(1024 * 1024);
+    appender.setLoggerVolumeSize(2);
+    initAppender();
+
+    for (int i = 0; i < 10; i++) {
+      Logger.getLogger("aaa").warn("message " + i);
+    }
+    Logger.getLogger("bbb").warn("message");
+    Logger.getLogger("ccc").warn("message");
+    Logger.getLogger("ddd").warn("message");
+
+    final List<LoggerVolume.Entry> top = appender.getLoggerVolume().top(10);
+    Assert.assertEquals(3, top.size());
+    Assert.assertEquals("aaa", top.get(0).getLogger());
+    Assert.assertEquals(10, top.get(0).getEvents());
+    Assert.assertEquals(LoggerVolume.OTHER, top.get(1).getLogger());
+    Assert.assertEquals(2, top.get(1).getEvents());
+    Assert.assertEquals("bbb", top.get(2).getLogger());
+    Assert.assertEquals(1, top.get(2).getEvents());
+    Assert.assertTrue(top.get(0).getSize() > 10 * top.get(2).getSize() - 10);
+    Assert.assertEquals("chars", top.get(0).getUnit());
+    Assert.assertEquals(1, appender.getLoggerVolume().top(1).size());
+  }
+
+  @Test
+  public void test_logger_volume_summary() throws IOException {
+    appender.setMaximumFileSize(1024 * 1024);
+    appender.setLoggerVolumeSize(10);
+    appender.setLoggerVolumeInterval(60);
+    initAppender();
+
+    final long time = System.currentTimeMillis();
+    appender.doAppend(new LoggingEvent(Logger.class.getName(), Logger.getLogger("aaa"), time, Level.WARN, "aaa", null));
+    appender.doAppend(new LoggingEvent(Logger.class.getName(), Logger.getLogger("bbb"), time + 61 * 1000, Level.WARN, "bbb", null));
+
+    final List<String> lines = readLines(new File(home, "log.1"));
+    Assert.assertEquals(3, lines.size());
+    Assert.assertEquals(LoggerVolume.class.getName(), JsonPath.read(lines.get(2), "$.logger"));
+    Assert.assertEquals(1, (int) JsonPath.<Integer>read(lines.get(2), "$.message.loggers.aaa.events"));
+    Assert.assertEquals(1, (int) JsonPath.<Integer>read(lines.get(2), "$.message.loggers.bbb.events"));
+    Assert.assertTrue(JsonPath.<Integer>read(lines.get(2), "$.message.loggers.aaa.chars") > 0);
+  }
+
+  @Test
+  public void test_soak_keeps_every_event() throws Exception {
+    final NextRollingFileAppender soak = RollingAppenderSoak.newAppender(true, home, 16 * 1024, 1000);
+    final RollingAppenderSoak.Result result = RollingAppenderSoak.run(soak, 4, 2000);
+
+    Assert.assertTrue(result.getRollovers() > 10);
+    Assert.assertEquals(0, result.getFilesDeleted());
+    Assert.assertEquals(new ArrayList<String>(), result.verify());
+  }
+
+  @Test
+  public void test_soak_honors_max_backup_index() throws Exception {
+    final NextRollingFileAppender soak = RollingAppenderSoak.newAppender(false, home, 4 * 1024, 5);
+    final RollingAppenderSoak.Result result = RollingAppenderSoak.run(soak, 4, 5000);
+
+    Assert.assertTrue(result.getFilesDeleted() > 10);
+    Assert.assertEquals(new ArrayList<String>(), result.verify());
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    final List<String> lines = new ArrayList<String>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
 
   private void assertFiles(String... files) {
     final Set<String> actual = dumpFiles();
@@ -0,0 +1,197 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static com.jayway.jsonassert.JsonAssert.with;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.spy;
+
+public class RateLimitFilterTest {
+  private StringWriter consoleWriter;
+  private ConsoleAppender consoleAppender;
+  private RateLimitFilter filter;
+
+  @Before
+  public void setUp() throws Exception {
+    consoleWriter = new StringWriter();
+
+    JsonLayout consoleLayout = new JsonLayout();
+    consoleLayout.activateOptions();
+
+    consoleAppender = spy(new ConsoleAppender());
+    doNothing().when(consoleAppender).activateOptions();
+    consoleAppender.setWriter(consoleWriter);
+    consoleAppender.setLayout(consoleLayout);
+    consoleAppender.activateOptions();
+
+    filter = new RateLimitFilter();
+    consoleAppender.addFilter(filter);
+
+    Logger logger = Logger.getRootLogger();
+    logger.removeAllAppenders();
+    logger.addAppender(consoleAppender);
+    logger.setLevel(Level.ALL);
+  }
+
+  @After
+  public void tearDown() {
+    Logger.getRootLogger().removeAllAppenders();
+  }
+
+  @Test
+  public void should_not_limit_by_default() {
+    for (int i = 0; i < 1000; i++) {
+      Logger.getLogger("qqq").info("aaa");
+    }
+
+    Assert.assertEquals(1000, countLines());
+  }
+
+  @Test
+  public void should_limit_events_of_a_prefix() {
+    filter.setLimits("qqq:10");
+
+    for (int i = 0; i < 1000; i++) {
+      Logger.getLogger("qqq.www").info("aaa");
+      Logger.getLogger("eee").info("bbb");
+    }
+
+    // a second worth of events passes at once
+    final int lines = countLines();
+    Assert.assertTrue("" + lines, lines >= 1000 + 10 && lines < 1000 + 20);
+  }
+
+  @Test
+  public void should_limit_events_by_level() {
+    filter.setLimits("qqq:INFO:10");
+
+    for (int i = 0; i < 1000; i++) {
+      Logger.getLogger("qqq").info("aaa");
+      Logger.getLogger("qqq").warn("bbb");
+    }
+
+    final int lines = countLines();
+    Assert.assertTrue("" + lines, lines >= 1000 + 10 && lines < 1000 + 20);
+  }
+
+  @Test
+  public void should_apply_the_longest_prefix() {
+    filter.setLimits("*:10, qqq:1000000");
+
+    for (int i = 0; i < 1000; i++) {
+      Logger.getLogger("qqq").info("aaa");
+      Logger.getLogger("www").info("bbb");
+    }
+
+    final int lines = countLines();
+    Assert.assertTrue("" + lines, lines >= 1000 + 10 && lines < 1000 + 20);
+  }
+
+  @Test
+  public void should_deny_all_events_at_rate_0() {
+    filter.setLimits("qqq:0");
+
+    for (int i = 0; i < 1000; i++) {
+      Logger.getLogger("qqq").info("aaa");
+    }
+    Logger.getLogger("www").info("bbb");
+
+    Assert.assertEquals(1, countLines());
+    with(consoleWriter.toString()).assertThat("$.message", equalTo("bbb"));
+  }
+
+  @Test
+  public void should_pass_one_event_at_tiny_rates() {
+    filter.setLimits("qqq:1e-12, www:INFO:1e-30");
+
+    for (int i = 0; i < 1000; i++) {
+      Logger.getLogger("qqq").info("aaa");
+      Logger.getLogger("www").info("bbb");
+    }
+
+    Assert.assertEquals(2, countLines());
+  }
+
+  @Test
+  public void should_ignore_negative_rates() {
+    filter.setLimits("qqq:-1");
+
+    for (int i = 0; i < 100; i++) {
+      Logger.getLogger("qqq").info("aaa");
+    }
+
+    Assert.assertEquals(100, countLines());
+  }
+
+  @Test
+  public void should_append_summary_of_suppressed_events() {
+    filter.setLimits("qqq:INFO:10");
+    filter.setSummaryInterval(60);
+
+    final long time = System.currentTimeMillis();
+    for (int i = 0; i < 100; i++) {
+      consoleAppender.doAppend(event("qqq", time, "aaa"));
+    }
+    consoleWriter.getBuffer().setLength(0);
+
+    consoleAppender.doAppend(event("www", time + 61 * 1000, "bbb"));
+
+    final String[] lines = consoleWriter.toString().split("\n");
+    Assert.assertEquals(2, lines.length);
+    with(lines[0])
+            .assertThat("$.logger", equalTo(RateLimitFilter.class.getName()))
+            .assertThat("$.message.suppressed.['qqq:INFO']", equalTo(90));
+    with(lines[1]).assertThat("$.message", equalTo("bbb"));
+  }
+
+  @Test
+  public void should_append_summary_without_further_events() throws Exception {
+    filter.setLimits("qqq:INFO:10");
+    filter.setSummaryInterval(1);
+    filter.activateOptions();
+
+    for (int i = 0; i < 100; i++) {
+      Logger.getLogger("qqq").info("aaa");
+    }
+
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (!consoleWriter.toString().contains("suppressed")) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    final String[] lines = consoleWriter.toString().split("\n");
+    with(lines[lines.length - 1])
+            .assertThat("$.logger", equalTo(RateLimitFilter.class.getName()))
+            .assertThat("$.message.suppressed.['qqq:INFO']", equalTo(90));
+  }
+
+  @Test
+  public void should_separate_parts_as_category_filter() {
+    filter.setLimits("qqq = INFO = 10");
+
+    for (int i = 0; i < 1000; i++) {
+      Logger.getLogger("qqq").info("aaa");
+    }
+
+    final int lines = countLines();
+    Assert.assertTrue("" + lines, lines >= 10 && lines < 20);
+  }
+
+  private static LoggingEvent event(String logger, long time, String message) {
+    return new LoggingEvent(Logger.class.getName(), Logger.getLogger(logger), time, Level.INFO, message, null);
+  }
+
+  private int countLines() {
+    return consoleWriter.toString().split("\n").length;
+  }
+}
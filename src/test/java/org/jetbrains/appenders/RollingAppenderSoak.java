@@ -0,0 +1,222 @@
+package org.jetbrains.appenders;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives a rolling appender from many threads with a small maximum file size, so that it rolls over
+ * all the time, and then checks the files it left behind.
+ *
+ * Reports events/s, MB/s and the latency of appending as seen by the logging threads, including
+ * waiting for the appender. Then every surviving event must appear exactly once, the surviving events
+ * of each thread must be a gapless run ending with its last event, and no more than
+ * <code>maxBackupIndex</code> files may be left. When nothing was deleted every event must be found.
+ *
+ * <code>NextRollingFileAppenderTest</code> runs a short soak; run a long one with
+ * <pre>
+ *   java -cp target/classes:target/test-classes:log4j.jar org.jetbrains.appenders.RollingAppenderSoak [max threads] [events per thread] [max file size] [max backup index]
+ * </pre>
+ */
+public class RollingAppenderSoak {
+  private static final Logger LOG = Logger.getLogger(RollingAppenderSoak.class);
+  private static final Pattern MESSAGE_PATTERN = Pattern.compile("\"message\":\"t(\\d+) (\\d+)\"");
+
+  public static void main(String[] args) throws Exception {
+    final int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    final int events = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    final long maxFileSize = args.length > 2 ? Long.parseLong(args[2]) : 1024 * 1024;
+    final int maxBackupIndex = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      for (boolean json : new boolean[]{false, true}) {
+        final File home = File.createTempFile("soak", "logs");
+        Paths.delete(home);
+        //noinspection ResultOfMethodCallIgnored
+        home.mkdirs();
+        try {
+          final NextRollingFileAppender appender = newAppender(json, home, maxFileSize, maxBackupIndex);
+          final Result result = run(appender, threads, events);
+          System.out.println(String.format("%-24s %3d threads %s",
+                  appender.getClass().getSimpleName(), threads, result));
+          final List<String> errors = result.verify();
+          for (String error : errors) {
+            System.out.println("  " + error);
+          }
+          if (!errors.isEmpty()) {
+            System.exit(1);
+          }
+        } finally {
+          Paths.delete(home);
+        }
+      }
+    }
+  }
+
+  static NextRollingFileAppender newAppender(boolean json, File home, long maxFileSize, int maxBackupIndex) {
+    final NextRollingFileAppender appender;
+    if (json) {
+      appender = new JsonFileAppender();
+    } else {
+      appender = new NextRollingFileAppender();
+      appender.setLayout(new JsonLayout());
+    }
+    appender.setName("soak");
+    appender.setMaximumFileSize(maxFileSize);
+    appender.setMaxBackupIndex(maxBackupIndex);
+    appender.setFile(new File(home, "log").getPath());
+    appender.activateOptions();
+    return appender;
+  }
+
+  /**
+   * Appends <code>events</code> events from each of <code>threads</code> threads and closes the appender.
+   */
+  static Result run(final NextRollingFileAppender appender, int threads, final int events) throws Exception {
+    // closing the appender resets its file
+    final File home = new File(appender.getFile()).getParentFile();
+    final LatencyHistogram latency = new LatencyHistogram();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final String prefix = "t" + t + " ";
+      final Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < events; i++) {
+              final LoggingEvent event = new LoggingEvent(Logger.class.getName(), LOG, Level.INFO, prefix + i, null);
+              final long time = System.nanoTime();
+              appender.doAppend(event);
+              latency.record(System.nanoTime() - time);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+      thread.start();
+    }
+
+    final long startTime = System.nanoTime();
+    start.countDown();
+    done.await();
+    final long elapsed = System.nanoTime() - startTime;
+    appender.close();
+
+    final AppenderMetrics metrics = appender.getMetrics();
+    return new Result(home, appender.getMaxBackupIndex(), threads, events,
+            elapsed, metrics.getBytesWritten(), metrics.getRollovers(), metrics.getFilesDeleted(), latency);
+  }
+
+  static class Result {
+    private final File myHome;
+    private final int myMaxBackupIndex;
+    private final int myThreads;
+    private final int myEvents;
+    private final long myElapsed;
+    private final long myBytes;
+    private final long myRollovers;
+    private final long myFilesDeleted;
+    private final LatencyHistogram myLatency;
+
+    private Result(final File home, final int maxBackupIndex, final int threads, final int events, final long elapsed,
+                   final long bytes, final long rollovers, final long filesDeleted, final LatencyHistogram latency) {
+      myHome = home;
+      myMaxBackupIndex = maxBackupIndex;
+      myThreads = threads;
+      myEvents = events;
+      myElapsed = elapsed;
+      myBytes = bytes;
+      myRollovers = rollovers;
+      myFilesDeleted = filesDeleted;
+      myLatency = latency;
+    }
+
+    long getRollovers() {
+      return myRollovers;
+    }
+
+    long getFilesDeleted() {
+      return myFilesDeleted;
+    }
+
+    /**
+     * @return the violations found in the files, empty if none
+     */
+    List<String> verify() throws IOException {
+      final List<String> errors = new ArrayList<String>();
+      final File[] files = myHome.listFiles();
+      if (files == null) {
+        errors.add("No files in " + myHome);
+        return errors;
+      }
+      if (files.length > myMaxBackupIndex) {
+        errors.add(files.length + " files left, more than maxBackupIndex " + myMaxBackupIndex);
+      }
+
+      final BitSet[] seen = new BitSet[myThreads];
+      for (int t = 0; t < myThreads; t++) {
+        seen[t] = new BitSet(myEvents);
+      }
+      for (File file : files) {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            final Matcher matcher = MESSAGE_PATTERN.matcher(line);
+            if (!matcher.find()) {
+              errors.add("Unexpected line in " + file.getName() + ": " + line);
+              continue;
+            }
+            final int thread = Integer.parseInt(matcher.group(1));
+            final int event = Integer.parseInt(matcher.group(2));
+            if (seen[thread].get(event)) {
+              errors.add("Event " + event + " of thread " + thread + " is written twice");
+            }
+            seen[thread].set(event);
+          }
+        } finally {
+          reader.close();
+        }
+      }
+
+      for (int t = 0; t < myThreads; t++) {
+        final int first = seen[t].nextSetBit(0);
+        final int count = seen[t].cardinality();
+        if (myFilesDeleted == 0 && count != myEvents) {
+          errors.add("Thread " + t + ": " + count + " of " + myEvents + " events found, no file was deleted");
+        } else if (first >= 0 && seen[t].nextClearBit(first) != myEvents) {
+          // all events of a thread may be in deleted files if it finished early
+          errors.add("Thread " + t + ": the events found are not a run ending with the last event: from " + first
+                  + " to " + (seen[t].nextClearBit(first) - 1) + ", last " + (seen[t].length() - 1));
+        }
+      }
+      return errors;
+    }
+
+    @Override
+    public String toString() {
+      final long total = (long) myThreads * myEvents;
+      final double seconds = (double) myElapsed / TimeUnit.SECONDS.toNanos(1);
+      return String.format("%10.0f events/s %8.1f MB/s  p50 %6d us  p99 %6d us  p99.9 %6d us  max %6d us  %d rollovers",
+              total / seconds, myBytes / seconds / (1024 * 1024), myLatency.getP50Micros(), myLatency.getP99Micros(),
+              myLatency.getP999Micros(), myLatency.getMaxMicros(), myRollovers);
+    }
+  }
+}
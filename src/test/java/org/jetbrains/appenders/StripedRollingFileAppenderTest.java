@@ -0,0 +1,172 @@
+package org.jetbrains.appenders;
+
+import com.jayway.jsonpath.JsonPath;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.*;
+
+import static com.jayway.jsonassert.JsonAssert.with;
+import static org.hamcrest.Matchers.equalTo;
+
+public class StripedRollingFileAppenderTest {
+  private File home;
+  private StripedRollingFileAppender appender;
+
+  @Before
+  public void before() throws IOException {
+    home = File.createTempFile("aaa", "bbb");
+    Paths.delete(home);
+    //noinspection ResultOfMethodCallIgnored
+    home.mkdirs();
+    Assert.assertTrue(home.isDirectory());
+
+    appender = new StripedRollingFileAppender();
+    appender.setName("striped");
+    appender.setLayout(new JsonLayout());
+    appender.setStripes(2);
+    appender.setFileExtension(".json");
+    appender.setFile(new File(home, "log").getPath());
+  }
+
+  private void initAppender() {
+    appender.activateOptions();
+
+    Logger.getRootLogger().removeAllAppenders();
+    Logger.getRootLogger().addAppender(appender);
+  }
+
+  @After
+  public void after() {
+    Logger.getRootLogger().removeAllAppenders();
+    appender.close();
+    if (home != null) {
+      Paths.delete(home);
+    }
+  }
+
+  @Test
+  public void test_events_of_a_thread_are_written_in_order() throws Exception {
+    initAppender();
+
+    final int threads = 4;
+    final int events = 100;
+    final Thread[] writers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final String prefix = "thread" + t;
+      writers[t] = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < events; i++) {
+            Logger.getRootLogger().warn(prefix + " " + i);
+          }
+        }
+      });
+      writers[t].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    Logger.getRootLogger().removeAppender(appender);
+    appender.close();
+
+    assertFiles("log-s0.1.json", "log-s1.1.json");
+
+    final Map<String, Integer> next = new HashMap<String, Integer>();
+    int total = 0;
+    for (String name : dumpFiles()) {
+      final String path = new File(home, name).getCanonicalPath();
+      for (String line : readLines(new File(home, name))) {
+        with(line).assertThat("$.path", equalTo(path));
+        final String[] message = JsonPath.<String>read(line, "$.message").split(" ");
+        final Integer expected = next.get(message[0]);
+        Assert.assertEquals(expected == null ? 0 : expected, Integer.parseInt(message[1]));
+        next.put(message[0], Integer.parseInt(message[1]) + 1);
+        total++;
+      }
+    }
+    Assert.assertEquals(threads * events, total);
+  }
+
+  @Test
+  public void test_retention_across_stripes() throws Exception {
+    appender.setMaximumFileSize(4);
+    appender.setMaxBackupIndex(4);
+    initAppender();
+
+    logFromThreads(2, 10);
+
+    Assert.assertTrue(dumpFiles().toString(), dumpFiles().size() <= 4);
+  }
+
+  @Test
+  public void test_max_total_size() throws Exception {
+    appender.setMaximumFileSize(4);
+    appender.setMaxBackupIndex(100);
+    appender.setMaxTotalSize("1KB");
+    initAppender();
+
+    logFromThreads(2, 20);
+
+    long total = 0;
+    for (String name : dumpFiles()) {
+      total += new File(home, name).length();
+    }
+    // the files being written are never removed
+    Assert.assertTrue("" + total, total <= 1024 + 2 * 1024);
+    Assert.assertTrue(dumpFiles().size() < 40);
+  }
+
+  private void logFromThreads(int threads, final int events) throws InterruptedException {
+    final Thread[] writers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      writers[t] = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < events; i++) {
+            Logger.getRootLogger().warn("aaa" + i);
+          }
+        }
+      });
+      writers[t].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+  }
+
+  private void assertFiles(String... files) {
+    final Set<String> actual = dumpFiles();
+
+    for (String file : files) {
+      Assert.assertTrue("File " + file + " should exist", new File(home, file).isFile());
+      actual.remove(file);
+    }
+
+    Assert.assertTrue("" + actual, actual.isEmpty());
+  }
+
+  private Set<String> dumpFiles() {
+    return new TreeSet<String>(Arrays.asList(home.list()));
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    final List<String> lines = new ArrayList<String>();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,291 @@
+package org.jetbrains.appenders;
+
+import com.jayway.jsonpath.JsonPath;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.jayway.jsonassert.JsonAssert.with;
+import static org.hamcrest.Matchers.equalTo;
+
+public class TcpJsonAppenderTest {
+  private static final Logger LOG = Logger.getLogger(TcpJsonAppenderTest.class);
+
+  private File home;
+  private int port;
+  private Collector collector;
+  private final List<TcpJsonAppender> appenders = new ArrayList<TcpJsonAppender>();
+
+  @Before
+  public void before() throws IOException {
+    home = File.createTempFile("aaa", "bbb");
+    Paths.delete(home);
+    //noinspection ResultOfMethodCallIgnored
+    home.mkdirs();
+
+    // a free port, the collector is started on it when needed
+    final ServerSocket socket = new ServerSocket(0);
+    port = socket.getLocalPort();
+    socket.close();
+  }
+
+  @After
+  public void after() throws IOException {
+    for (TcpJsonAppender appender : appenders) {
+      appender.close();
+    }
+    if (collector != null) {
+      collector.close();
+    }
+    if (home != null) {
+      Paths.delete(home);
+    }
+  }
+
+  @Test
+  public void test_sends_records_in_order() throws Exception {
+    collector = new Collector(port);
+    final TcpJsonAppender appender = newAppender(null, 8192);
+
+    append(appender, 0, 1000);
+
+    final List<String> lines = collector.await(1000);
+    assertMessages(lines, 0, 1000);
+    with(lines.get(0)).assertThat("$.logger", equalTo(TcpJsonAppenderTest.class.getName()));
+    Assert.assertEquals(0, appender.getSpooledCount());
+    Assert.assertEquals(0, appender.getDroppedCount());
+  }
+
+  @Test
+  public void test_spools_while_the_collector_is_down_and_replays_in_order() throws Exception {
+    final TcpJsonAppender appender = newAppender(new File(home, "spool"), 10);
+
+    append(appender, 0, 500);
+    // the sender holds a batch besides the queue
+    Assert.assertTrue("" + appender.getSpooledCount(), appender.getSpooledCount() >= 480);
+
+    collector = new Collector(port);
+    assertMessages(collector.await(500), 0, 500);
+
+    append(appender, 500, 600);
+    assertMessages(collector.await(100), 500, 600);
+    Assert.assertEquals(600, appender.getSentCount());
+    Assert.assertEquals(0, appender.getDroppedCount());
+  }
+
+  @Test
+  public void test_reconnects_when_the_collector_restarts() throws Exception {
+    collector = new Collector(port);
+    final TcpJsonAppender appender = newAppender(new File(home, "spool"), 10);
+
+    append(appender, 0, 100);
+    assertMessages(collector.await(100), 0, 100);
+
+    collector.close();
+    // the records written before the sender notices the collector is gone are lost
+    for (int i = 100; appender.isConnected(); i++) {
+      Assert.assertTrue(i < 1000);
+      append(appender, i, i + 1);
+      Thread.sleep(1);
+    }
+
+    collector = new Collector(port);
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (!appender.isConnected()) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+    append(appender, 1000, 1100);
+    final List<String> lines = collector.awaitMessage("m1099");
+    Assert.assertTrue(lines.size() >= 100);
+    assertMessages(lines.subList(lines.size() - 100, lines.size()), 1000, 1100);
+    // what was kept in the meantime comes in order
+    int last = -1;
+    for (String line : lines) {
+      final int message = Integer.parseInt(JsonPath.<String>read(line, "$.message").substring(1));
+      Assert.assertTrue(line, message > last);
+      last = message;
+    }
+  }
+
+  @Test
+  public void test_counts_records_removed_from_the_full_spool_as_dropped() throws Exception {
+    final TcpJsonAppender appender = newAppender(new File(home, "spool"), 10, 3);
+
+    append(appender, 0, 500);
+
+    collector = new Collector(port);
+    final List<String> lines = collector.awaitMessage("m499");
+    appender.close();
+    Assert.assertTrue("" + appender.getDroppedCount(), appender.getDroppedCount() > 0);
+    Assert.assertEquals(500, lines.size() + appender.getDroppedCount());
+    Assert.assertEquals(lines.size(), appender.getSentCount());
+    int last = -1;
+    for (String line : lines) {
+      final int message = Integer.parseInt(JsonPath.<String>read(line, "$.message").substring(1));
+      Assert.assertTrue(line, message > last);
+      last = message;
+    }
+  }
+
+  @Test
+  public void test_drops_records_without_spool() throws Exception {
+    final TcpJsonAppender appender = newAppender(null, 10);
+
+    append(appender, 0, 100);
+    // the sender holds a batch besides the queue
+    Assert.assertTrue("" + appender.getDroppedCount(), appender.getDroppedCount() >= 80);
+
+    appender.close();
+    Assert.assertEquals(100, appender.getDroppedCount());
+    Assert.assertEquals(0, appender.getSpooledCount());
+  }
+
+  @Test
+  public void test_replays_spool_of_previous_run() throws Exception {
+    final File spool = new File(home, "spool");
+    final TcpJsonAppender previous = newAppender(spool, 1);
+    previous.setCloseTimeout(100);
+    append(previous, 0, 50);
+    previous.close();
+
+    collector = new Collector(port);
+    final TcpJsonAppender appender = newAppender(spool, 8192);
+    append(appender, 50, 100);
+
+    // the records held in memory by the previous run are lost
+    final int spooled = 50 - (int) previous.getDroppedCount();
+    Assert.assertEquals(spooled, previous.getSpooledCount());
+    assertMessages(collector.await(spooled + 50), 50 - spooled, 100);
+  }
+
+  private TcpJsonAppender newAppender(final File spool, final int queueSize) {
+    return newAppender(spool, queueSize, 1000);
+  }
+
+  private TcpJsonAppender newAppender(final File spool, final int queueSize, final int spoolMaxFiles) {
+    final JsonLayout layout = new JsonLayout();
+    layout.activateOptions();
+
+    final TcpJsonAppender appender = new TcpJsonAppender();
+    appender.setName("tcp");
+    appender.setLayout(layout);
+    appender.setPort(port);
+    appender.setQueueSize(queueSize);
+    appender.setBatchSize(1024);
+    appender.setMaxReconnectDelay(200);
+    if (spool != null) {
+      appender.setSpoolDir(spool.getPath());
+      appender.setSpoolMaxFileSize("4KB");
+      appender.setSpoolMaxFiles(spoolMaxFiles);
+    }
+    appender.activateOptions();
+    appenders.add(appender);
+    return appender;
+  }
+
+  private static void append(final TcpJsonAppender appender, final int from, final int to) {
+    for (int i = from; i < to; i++) {
+      appender.doAppend(new LoggingEvent(Logger.class.getName(), LOG, Level.INFO, "m" + i, null));
+    }
+  }
+
+  private static void assertMessages(final List<String> lines, final int from, final int to) {
+    Assert.assertEquals(to - from, lines.size());
+    for (int i = from; i < to; i++) {
+      with(lines.get(i - from)).assertThat("$.message", equalTo("m" + i));
+    }
+  }
+
+  /**
+   * Accepts one connection after another and collects the lines received.
+   */
+  private static class Collector implements Runnable {
+    private final ServerSocket myServer;
+    private final BlockingQueue<String> myLines = new LinkedBlockingQueue<String>();
+    private final Thread myThread;
+    private volatile Socket mySocket;
+
+    private Collector(final int port) throws IOException {
+      myServer = new ServerSocket();
+      myServer.setReuseAddress(true);
+      myServer.bind(new InetSocketAddress("localhost", port));
+      myThread = new Thread(this, "collector");
+      myThread.setDaemon(true);
+      myThread.start();
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          mySocket = myServer.accept();
+          final BufferedReader reader = new BufferedReader(new InputStreamReader(mySocket.getInputStream(), "UTF-8"));
+          try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+              myLines.add(line);
+            }
+          } catch (IOException e) {
+            // the connection is closed
+          } finally {
+            mySocket.close();
+          }
+        }
+      } catch (IOException e) {
+        // the collector is closed
+      }
+    }
+
+    List<String> await(final int count) throws InterruptedException {
+      final List<String> lines = new ArrayList<String>();
+      final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(20);
+      while (lines.size() < count) {
+        final String line = myLines.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        if (line == null) break;
+        lines.add(line);
+      }
+      // nothing more should come
+      final String extra = myLines.poll(200, TimeUnit.MILLISECONDS);
+      if (extra != null) {
+        lines.add(extra);
+      }
+      return lines;
+    }
+
+    List<String> awaitMessage(final String message) throws InterruptedException {
+      final List<String> lines = new ArrayList<String>();
+      final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(20);
+      while (true) {
+        final String line = myLines.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        Assert.assertNotNull("No " + message + " after " + lines, line);
+        lines.add(line);
+        if (line.contains("\"" + message + "\"")) return lines;
+      }
+    }
+
+    void close() throws IOException {
+      myServer.close();
+      final Socket socket = mySocket;
+      if (socket != null) {
+        socket.close();
+      }
+    }
+  }
+}